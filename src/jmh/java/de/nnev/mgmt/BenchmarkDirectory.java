@@ -0,0 +1,74 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldif.LDIFException;
+
+import java.io.IOException;
+
+// in-memory directory of DirectoryGenerator with uniform groups: group g has the members
+// uid(g)..uid(g + members - 1). Groups always have membersPerGroup members: if half of the users are not enough,
+// the groups are filled up with the accounts benchmember0.., which the benchmarks never look up or change.
+final class BenchmarkDirectory {
+
+  static final int FIRST_ID_NUMBER = DirectoryGenerator.FIRST_ID_NUMBER;
+
+  private BenchmarkDirectory() {
+  }
+
+  static TestInMemLdap start(int users, int groups, int membersPerGroup) throws LDAPException, LDIFException, IOException {
+    var ldap = new TestInMemLdap();
+    ldap.startLdap();
+    var generator = new DirectoryGenerator(users, groups, membersPerGroup, DirectoryGenerator.Distribution.uniform);
+    generator.populate(ldap);
+
+    int extra = memberAccounts(users, membersPerGroup);
+    if (extra == 0) {
+      return ldap;
+    }
+    String[] memberDNs = new String[extra];
+    for (int i = 0; i < extra; i++) {
+      String uid = memberUid(i);
+      int idNumber = generator.nextIdNumber() + i;
+      ldap.srv.add(ManagerLDAP.createGroupEntry(uid, ManagerLDAP.GroupType.UserGroup, idNumber));
+      ldap.srv.add(ManagerLDAP.createUserEntry(uid, "Benchmark Member " + i, idNumber, idNumber, "/bin/bash", "/home/" + uid));
+      memberDNs[i] = ManagerLDAP.getUserDN(uid).toString();
+    }
+    for (int g = 0; g < groups; g++) {
+      ldap.srv.modify(ManagerLDAP.getGroupDN(group(g), ManagerLDAP.GroupType.RegularGroup).toString(), new Modification(ModificationType.ADD, "member", memberDNs));
+    }
+
+    // keep the counters above the seeded numbers
+    int next = generator.nextIdNumber() + extra;
+    ldap.srv.modify(ManagerLDAP.UID_DN, new Modification(ModificationType.REPLACE, "uidNumber", String.valueOf(next)));
+    ldap.srv.modify(ManagerLDAP.GID_DN, new Modification(ModificationType.REPLACE, "gidNumber", String.valueOf(next)));
+    return ldap;
+  }
+
+  // members among uid(0)..uid(N-1): at most half of them, so that every group has non-members
+  static int members(int users, int membersPerGroup) {
+    return Math.min(users / 2, membersPerGroup);
+  }
+
+  // number of benchmember accounts filling up the groups
+  static int memberAccounts(int users, int membersPerGroup) {
+    return membersPerGroup - members(users, membersPerGroup);
+  }
+
+  static String uid(int i) {
+    return DirectoryGenerator.uid(i);
+  }
+
+  static String memberUid(int i) {
+    return "benchmember" + i;
+  }
+
+  static String group(int g) {
+    return DirectoryGenerator.group(g);
+  }
+
+  static String sshKey(int i) {
+    return DirectoryGenerator.sshKey(i);
+  }
+}
@@ -0,0 +1,92 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ManagerLDAPBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  int users;
+
+  @Param({"20"})
+  int groups;
+
+  @Param({"5000"})
+  int membersPerGroup;
+
+  TestInMemLdap ldap;
+  LDAPConnection conn;
+  ManagerLDAP u;
+
+  int next;
+  int created;
+
+  @Setup(Level.Trial)
+  public void setUp() throws LDAPException, LDIFException, IOException {
+    ldap = BenchmarkDirectory.start(users, groups, membersPerGroup);
+    conn = ldap.srv.getConnection();
+    u = new ManagerLDAP(conn);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    conn.close();
+    ldap.shutdownLdap();
+  }
+
+  private int nextUser() {
+    next = (next + 7919) % users;
+    return next;
+  }
+
+  @Benchmark
+  public Entry getUserEntry() throws LDAPException {
+    return u.getUserEntry(BenchmarkDirectory.uid(nextUser()));
+  }
+
+  @Benchmark
+  public Entry getGroupEntry() throws LDAPException {
+    return u.getGroupEntry(BenchmarkDirectory.group(nextUser() % groups));
+  }
+
+  // adds a non-member to a large group and removes it again, so the group size stays constant
+  @Benchmark
+  public void addUserToGroup() throws LDAPException {
+    int members = BenchmarkDirectory.members(users, membersPerGroup);
+    String uid = BenchmarkDirectory.uid(members + nextUser() % (users - members));
+    u.addUserToGroup(uid, BenchmarkDirectory.group(0));
+    u.removeUserFromGroup(uid, BenchmarkDirectory.group(0));
+  }
+
+  // adds a key and removes it again, so the entry size stays constant
+  @Benchmark
+  public void addSshKey() throws LDAPException {
+    int i = nextUser();
+    String key = BenchmarkDirectory.sshKey(i);
+    u.addSshKey(BenchmarkDirectory.uid(i), key);
+    u.removeSshKey(BenchmarkDirectory.uid(i), key);
+  }
+
+  @Benchmark
+  public int getNextUidNumber() throws LDAPException {
+    return u.getNextUidNumber();
+  }
+
+  // every invocation creates a new user, so the directory grows slowly during the measurement
+  @Benchmark
+  public int addUserWithUserGroup() throws LDAPException {
+    return u.addUserWithUserGroup("new" + created++, "New User", "/bin/bash");
+  }
+}
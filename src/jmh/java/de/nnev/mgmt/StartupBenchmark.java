@@ -0,0 +1,128 @@
+package de.nnev.mgmt;
+
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// starts the given executable (start script or native image) with every command against the --test in-memory server
+// and reports the time until the first output and until exit; startup dominates for these short commands
+//
+// usage: StartupBenchmark [--runs N] executable
+public final class StartupBenchmark {
+
+  private static final long TIMEOUT_SECONDS = 60;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int runs = 10;
+    int i = 0;
+    if (args.length > 1 && args[0].equals("--runs")) {
+      runs = Integer.parseInt(args[1]);
+      i = 2;
+    }
+    if (i != args.length - 1) {
+      System.err.println("usage: StartupBenchmark [--runs N] executable");
+      System.exit(2);
+    }
+    String executable = args[i];
+
+    Path dir = Files.createTempDirectory("startup-benchmark");
+    Map<String, List<String>> commands = commands(dir);
+
+    // every command has to be measured, new ones need sample arguments here
+    for (String name : new CommandLine(new Manager()).getSubcommands().keySet()) {
+      if (!commands.containsKey(name)) {
+        throw new IllegalStateException("No sample arguments for command " + name);
+      }
+    }
+
+    System.out.printf("%-24s %12s %12s %12s%n", "command", "first ms", "exit ms", "min first ms");
+    for (var command : commands.entrySet()) {
+      List<String> processArgs = new ArrayList<>();
+      processArgs.add(executable);
+      processArgs.add("--test");
+      processArgs.addAll(command.getValue());
+
+      long[] firstOutput = new long[runs];
+      long[] exit = new long[runs];
+      for (int run = 0; run < runs; run++) {
+        long[] times = run(processArgs, command.getKey().equals("serve"));
+        firstOutput[run] = times[0];
+        exit[run] = times[1];
+      }
+      System.out.printf("%-24s %12.1f %12.1f %12.1f%n", command.getKey(), median(firstOutput) / 1e6, median(exit) / 1e6, Arrays.stream(firstOutput).min().orElse(0) / 1e6);
+    }
+  }
+
+  private static Map<String, List<String>> commands(Path dir) throws IOException {
+    Path key = Files.writeString(dir.resolve("key.pub"), BenchmarkDirectory.sshKey(0) + "\n");
+    Path users = Files.writeString(dir.resolve("users.csv"), "user4,User Four\nuser5,User Five\n");
+    Path members = Files.writeString(dir.resolve("members"), "user1\nuser2\n");
+    Path index = dir.resolve("keys.idx");
+    Path socket = dir.resolve("socket");
+
+    Map<String, List<String>> commands = new LinkedHashMap<>();
+    commands.put("add-noname-user", List.of("user4", "User Four"));
+    commands.put("import-users", List.of(users.toString()));
+    commands.put("list-users", List.of());
+    commands.put("list-groups", List.of());
+    commands.put("add-group", List.of("group4"));
+    commands.put("add-user-to-group", List.of("user1", "group1"));
+    commands.put("remove-user-from-group", List.of("user1", "group2"));
+    commands.put("sync-group-members", List.of("group1=" + members));
+    commands.put("add-ssh-key", List.of("user1", key.toString()));
+    commands.put("remove-ssh-key", List.of("user1", key.toString()));
+    commands.put("set-ssh-keys", List.of("user1", key.toString()));
+    commands.put("get-ssh-keys", List.of("user1"));
+    commands.put("export-ssh-keys", List.of("--index", index.toString()));
+    commands.put("authorized-keys", List.of("--index", index.toString(), "user1"));
+    commands.put("audit", List.of());
+    commands.put("serve", List.of("--socket", socket.toString()));
+    return commands;
+  }
+
+  // nanoseconds until the first byte of output and until exit; long-running commands are stopped after their
+  // first output
+  private static long[] run(List<String> args, boolean stopAfterOutput) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    Process process = new ProcessBuilder(args).redirectErrorStream(true).start();
+
+    long firstOutput = -1;
+    try (InputStream out = process.getInputStream()) {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = out.read(buffer)) != -1) {
+        if (firstOutput < 0 && n > 0) {
+          firstOutput = System.nanoTime() - start;
+          if (stopAfterOutput) {
+            process.destroy();
+          }
+        }
+      }
+    }
+
+    if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      process.destroyForcibly();
+      throw new IllegalStateException("Timed out: " + String.join(" ", args));
+    }
+    long exit = System.nanoTime() - start;
+    if (!stopAfterOutput && process.exitValue() != 0) {
+      System.err.println("Exit code " + process.exitValue() + ": " + String.join(" ", args));
+    }
+    return new long[]{firstOutput < 0 ? exit : firstOutput, exit};
+  }
+
+  private static double median(long[] values) {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted.length % 2 == 1 ? sorted[sorted.length / 2] : (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2.0;
+  }
+}
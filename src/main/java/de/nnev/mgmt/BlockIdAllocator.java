@@ -0,0 +1,59 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+
+import java.util.TreeSet;
+
+// reserves blockSize numbers with one counter bump and hands them out locally, released numbers first
+public class BlockIdAllocator implements IdAllocator {
+
+  private final ManagerLDAP u;
+  private final String dn;
+  private final String attributeName;
+  private final int blockSize;
+
+  private int next;
+  private int blockEnd;
+  private final TreeSet<Integer> released = new TreeSet<>();
+
+  public BlockIdAllocator(ManagerLDAP u, String dn, String attributeName, int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("block size must be positive");
+    }
+    this.u = u;
+    this.dn = dn;
+    this.attributeName = attributeName;
+    this.blockSize = blockSize;
+  }
+
+  @Override
+  public synchronized int next() throws LDAPException {
+    if (!released.isEmpty()) {
+      return released.pollFirst();
+    }
+    if (next == blockEnd) {
+      next = u.getNextPosixIdNumbers(dn, attributeName, blockSize);
+      blockEnd = next + blockSize;
+    }
+    return next++;
+  }
+
+  @Override
+  public synchronized void release(int number) {
+    released.add(number);
+  }
+
+  // the unused rest of the block, together with released numbers right below it, can only be given back if nobody
+  // reserved numbers after us; otherwise, like the other released numbers, it stays a gap in the number range
+  @Override
+  public synchronized void close() throws LDAPException {
+    while (released.remove(next - 1)) {
+      next--;
+    }
+    released.clear();
+    if (next < blockEnd && u.returnPosixIdNumbers(dn, attributeName, next, blockEnd)) {
+      blockEnd = next;
+    }
+    next = blockEnd;
+  }
+}
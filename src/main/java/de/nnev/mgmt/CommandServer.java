@@ -0,0 +1,183 @@
+package de.nnev.mgmt;
+
+import org.newsclub.net.unix.AFUNIXServerSocket;
+import org.newsclub.net.unix.AFUNIXSocketAddress;
+import picocli.CommandLine;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// executes Manager commands for ManagerClient over a shared ManagerLDAP. Lengths and the exit code are ASCII decimal
+// lines, so that shell clients can talk to it, e.g.
+//   printf '%s\0' "$PWD" list-users > req; { wc -c < req; cat req; } | socat - UNIX-CONNECT:/run/ldap-user-mgmt.sock
+//
+// request:  length "\n", then length bytes: UTF-8 working directory and arguments, each terminated by NUL
+// response: exit code "\n", length "\n" + UTF-8 stdout, length "\n" + UTF-8 stderr
+public class CommandServer implements Closeable {
+
+  public static final String DEFAULT_SOCKET = "/run/ldap-user-mgmt.sock";
+
+  static final int MAX_REQUEST_BYTES = 1 << 20;
+  static final int MAX_ARGS = 4096;
+  // a long has at most 19 digits
+  private static final int MAX_NUMBER_DIGITS = 19;
+
+  private final ManagerLDAP u;
+  private final Path socketPath;
+  private final AFUNIXServerSocket serverSocket;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  public CommandServer(Path socketPath, ManagerLDAP u) throws IOException {
+    this.u = u;
+    this.socketPath = socketPath;
+
+    // everybody who can connect can manage users: the socket is bound in a directory only we can enter, restricted
+    // and then moved into place, which also replaces a socket file left behind by a server that was killed
+    Path directory = Files.createTempDirectory(socketPath.toAbsolutePath().getParent(), ".ldap-user-mgmt",
+      PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    Path bound = directory.resolve("sock");
+    serverSocket = AFUNIXServerSocket.newInstance();
+    try {
+      serverSocket.bind(AFUNIXSocketAddress.of(bound));
+      Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+      Files.move(bound, socketPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      serverSocket.close();
+      throw e;
+    } finally {
+      Files.deleteIfExists(bound);
+      Files.delete(directory);
+    }
+  }
+
+  public void serve() throws IOException {
+    while (!serverSocket.isClosed()) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (SocketException e) {
+        if (serverSocket.isClosed()) {
+          break;
+        }
+        throw e;
+      }
+      executor.execute(() -> handle(socket));
+    }
+  }
+
+  private void handle(Socket socket) {
+    try (socket) {
+      var in = new BufferedInputStream(socket.getInputStream());
+      var response = new BufferedOutputStream(socket.getOutputStream());
+      long length = readNumber(in);
+      if (length < 0 || length > MAX_REQUEST_BYTES) {
+        writeResponse(response, CommandLine.ExitCode.USAGE, "", "Request larger than " + MAX_REQUEST_BYTES + " bytes\n");
+        return;
+      }
+      List<String> fields = splitFields(in.readNBytes((int) length), (int) length);
+      if (fields == null || fields.isEmpty() || fields.size() - 1 > MAX_ARGS) {
+        writeResponse(response, CommandLine.ExitCode.USAGE, "", "Malformed request or more than " + MAX_ARGS + " arguments\n");
+        return;
+      }
+
+      Path workingDirectory = Path.of(fields.get(0));
+      String[] args = fields.subList(1, fields.size()).toArray(new String[0]);
+      var out = new StringWriter();
+      var err = new StringWriter();
+      int exitCode = execute(workingDirectory, args, new PrintWriter(out, true), new PrintWriter(err, true));
+      writeResponse(response, exitCode, out.toString(), err.toString());
+    } catch (IOException ignored) {
+      // the client went away or sent garbage, nothing to report to
+    }
+  }
+
+  int execute(Path workingDirectory, String[] args, PrintWriter out, PrintWriter err) {
+    return new Manager(u, workingDirectory).commandLine()
+      .setOut(out)
+      .setErr(err)
+      .execute(args);
+  }
+
+  // NUL terminated UTF-8 strings, null if the request was cut short
+  private static List<String> splitFields(byte[] bytes, int length) {
+    if (bytes.length != length || (length > 0 && bytes[length - 1] != 0)) {
+      return null;
+    }
+    List<String> fields = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      if (bytes[i] == 0) {
+        fields.add(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+        start = i + 1;
+      }
+    }
+    return fields;
+  }
+
+  private static void writeResponse(OutputStream out, int exitCode, String stdout, String stderr) throws IOException {
+    out.write((exitCode + "\n").getBytes(StandardCharsets.US_ASCII));
+    writeString(out, stdout);
+    writeString(out, stderr);
+    out.flush();
+  }
+
+  static void writeString(OutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.write((bytes.length + "\n").getBytes(StandardCharsets.US_ASCII));
+    out.write(bytes);
+  }
+
+  static String readString(InputStream in) throws IOException {
+    long length = readNumber(in);
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IOException("Invalid length " + length);
+    }
+    byte[] bytes = in.readNBytes((int) length);
+    if (bytes.length != length) {
+      throw new EOFException();
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // an optionally signed decimal number terminated by a newline, surrounding blanks are ignored (wc -c pads)
+  static long readNumber(InputStream in) throws IOException {
+    var digits = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c < 0) {
+        throw new EOFException();
+      }
+      if (c != ' ' && c != '\t' && c != '\r') {
+        digits.append((char) c);
+      }
+      if (digits.length() > MAX_NUMBER_DIGITS + 1) {
+        throw new IOException("Number too long");
+      }
+    }
+    try {
+      return Long.parseLong(digits.toString());
+    } catch (NumberFormatException e) {
+      throw new IOException("Not a number: " + digits);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      serverSocket.close();
+      Files.deleteIfExists(socketPath);
+    } catch (IOException ignored) {
+    }
+    executor.shutdown();
+  }
+}
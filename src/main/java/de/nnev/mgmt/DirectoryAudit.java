@@ -0,0 +1,368 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.*;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import static com.unboundid.ldap.sdk.ModificationType.DELETE;
+
+// checks users, groups and the id counters for inconsistencies with one paged sweep of ou=users and one of
+// ou=groups. Only the id numbers in use (paged bitsets) and 64-bit hashes of the user DNs are held, the entries
+// themselves are dropped as soon as they are checked; entries holding a duplicate or orphaned number are looked
+// up again afterwards with batched searches.
+public class DirectoryAudit {
+
+  public enum Problem {
+    // member value not naming an existing user
+    danglingMember,
+    duplicateUidNumber,
+    duplicateGidNumber,
+    // user whose gidNumber no group has
+    missingPrimaryGroup,
+    // counter at or below a number in use, the next account or group would get a taken number
+    counterBehind,
+    // uidNumber or gidNumber missing, not a number or negative
+    invalidIdNumber
+  }
+
+  public interface Listener {
+    void found(Problem problem, String dn, String detail);
+
+    void fixed(Problem problem, String dn, String detail);
+  }
+
+  public record Result(long users, long groups, Map<Problem, Integer> problems, int fixed) {
+    public int total() {
+      return problems.values().stream().mapToInt(Integer::intValue).sum();
+    }
+  }
+
+  private final ManagerLDAP u;
+  private final int pageSize;
+  private final int batchSize;
+  private final boolean fix;
+  private final Listener listener;
+
+  private final Map<Problem, Integer> problems = new EnumMap<>(Problem.class);
+  private final LongHashSet userDNs = new LongHashSet();
+  private final IdSet uidNumbers = new IdSet();
+  private final IdSet duplicateUidNumbers = new IdSet();
+  private final IdSet primaryGidNumbers = new IdSet();
+  private final IdSet gidNumbers = new IdSet();
+  private final IdSet duplicateGidNumbers = new IdSet();
+  // group DN -> dangling member values as stored, only grows with the number of problems
+  private final Map<String, List<String>> danglingMembers = new LinkedHashMap<>();
+  private long users;
+  private long groups;
+  private int fixed;
+
+  public DirectoryAudit(ManagerLDAP u, int pageSize, int batchSize, boolean fix, Listener listener) {
+    if (pageSize < 1 || batchSize < 1) {
+      throw new IllegalArgumentException("page and batch size must be positive");
+    }
+    this.u = u;
+    this.pageSize = pageSize;
+    this.batchSize = batchSize;
+    this.fix = fix;
+    this.listener = listener;
+  }
+
+  // an audit object is used once
+  public Result audit() throws LDAPException {
+    if (users > 0 || groups > 0) {
+      throw new IllegalStateException("audit already ran");
+    }
+
+    // users first, so that member values can be checked while the groups stream by
+    u.forEachUser(pageSize, this::checkUser, "uidNumber", "gidNumber");
+    u.forEachGroup(pageSize, this::checkGroup, "gidNumber", "member");
+
+    reportHolders(Problem.duplicateUidNumber, "uidNumber", duplicateUidNumbers, null, true);
+    reportHolders(Problem.duplicateGidNumber, "gidNumber", duplicateGidNumbers, null, false);
+    reportHolders(Problem.missingPrimaryGroup, "gidNumber", primaryGidNumbers, gidNumbers, true);
+
+    checkCounter(ManagerLDAP.UID_DN, "uidNumber", uidNumbers.max());
+    // a group created with a gidNumber that users already have as primary group would silently get them as members
+    checkCounter(ManagerLDAP.GID_DN, "gidNumber", Math.max(gidNumbers.max(), primaryGidNumbers.max()));
+
+    removeDanglingMembers();
+
+    return new Result(users, groups, Collections.unmodifiableMap(new EnumMap<>(problems)), fixed);
+  }
+
+  private void checkUser(SearchResultEntry user) {
+    users++;
+    String dn = normalize(user.getDN());
+    if (dn != null) {
+      userDNs.add(hash(dn));
+    }
+
+    Integer uidNumber = idNumber(user, "uidNumber");
+    if (uidNumber != null && !uidNumbers.add(uidNumber)) {
+      duplicateUidNumbers.add(uidNumber);
+    }
+    Integer gidNumber = idNumber(user, "gidNumber");
+    if (gidNumber != null) {
+      primaryGidNumbers.add(gidNumber);
+    }
+  }
+
+  private void checkGroup(SearchResultEntry group) {
+    groups++;
+
+    Integer gidNumber = idNumber(group, "gidNumber");
+    if (gidNumber != null && !gidNumbers.add(gidNumber)) {
+      duplicateGidNumbers.add(gidNumber);
+    }
+
+    String[] members = group.getAttributeValues("member");
+    if (members == null) {
+      return;
+    }
+    for (String member : members) {
+      String normalized = normalize(member);
+      if (normalized == null || !userDNs.contains(hash(normalized))) {
+        found(Problem.danglingMember, group.getDN(), member);
+        danglingMembers.computeIfAbsent(group.getDN(), k -> new ArrayList<>()).add(member);
+      }
+    }
+  }
+
+  private Integer idNumber(Entry entry, String attributeName) {
+    Integer idNumber = entry.getAttributeValueAsInteger(attributeName);
+    if (idNumber == null || idNumber < 0) {
+      found(Problem.invalidIdNumber, entry.getDN(), attributeName + " " + entry.getAttributeValue(attributeName));
+      return null;
+    }
+    return idNumber;
+  }
+
+  // reports every user (or group) holding one of the numbers in the set but not in the exclusion
+  private void reportHolders(Problem problem, String attributeName, IdSet numbers, IdSet exclusion, boolean ofUsers)
+    throws LDAPException {
+    List<Filter> batch = new ArrayList<>(batchSize);
+    for (int number = numbers.next(0); number >= 0; number = numbers.next(number + 1)) {
+      if (exclusion == null || !exclusion.contains(number)) {
+        batch.add(Filter.createEqualityFilter(attributeName, String.valueOf(number)));
+        if (batch.size() == batchSize) {
+          searchHolders(problem, attributeName, batch, ofUsers);
+          batch.clear();
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      searchHolders(problem, attributeName, batch, ofUsers);
+    }
+  }
+
+  private void searchHolders(Problem problem, String attributeName, List<Filter> numbers, boolean ofUsers) throws LDAPException {
+    Filter filter = Filter.createORFilter(numbers);
+    Consumer<SearchResultEntry> report = entry -> found(problem, entry.getDN(), attributeName + " " + entry.getAttributeValue(attributeName));
+    if (ofUsers) {
+      u.forEachUser(pageSize, filter, report, attributeName);
+    } else {
+      u.forEachGroup(pageSize, filter, report, attributeName);
+    }
+  }
+
+  private void checkCounter(String dn, String attributeName, int maxInUse) throws LDAPException {
+    int counter = u.getPosixIdCounter(dn, attributeName);
+    if (counter > maxInUse) {
+      return;
+    }
+    String detail = attributeName + " counter " + counter + ", highest number in use " + maxInUse;
+    found(Problem.counterBehind, dn, detail);
+    if (!fix) {
+      return;
+    }
+
+    // somebody may bump the counter concurrently, that is fine as long as it ends up behind maxInUse
+    while (counter <= maxInUse) {
+      if (u.setPosixIdCounter(dn, attributeName, counter, maxInUse + 1)) {
+        break;
+      }
+      counter = u.getPosixIdCounter(dn, attributeName);
+    }
+    fixed++;
+    listener.fixed(Problem.counterBehind, dn, detail);
+  }
+
+  private void removeDanglingMembers() throws LDAPException {
+    if (!fix) {
+      return;
+    }
+
+    for (var group : danglingMembers.entrySet()) {
+      DN groupDN = new DN(group.getKey());
+      List<String> members = group.getValue();
+      for (int i = 0; i < members.size(); i += batchSize) {
+        // users created since the sweep of ou=users must not lose their membership
+        List<String> removals = stillDangling(members.subList(i, Math.min(i + batchSize, members.size())));
+        u.modifyMembers(groupDN, DELETE, removals);
+        for (String member : removals) {
+          fixed++;
+          listener.fixed(Problem.danglingMember, group.getKey(), member);
+        }
+      }
+    }
+  }
+
+  private List<String> stillDangling(List<String> members) throws LDAPSearchException {
+    List<String> uids = new ArrayList<>(members.size());
+    for (String member : members) {
+      String uid = uid(member);
+      if (uid != null) {
+        uids.add(uid);
+      }
+    }
+
+    Map<String, String> existing = u.resolveUserDNs(uids);
+    List<String> dangling = new ArrayList<>(members.size());
+    for (String member : members) {
+      String uid = uid(member);
+      String userDN = uid != null ? existing.get(uid.toLowerCase()) : null;
+      if (userDN == null || !Objects.equals(normalize(userDN), normalize(member))) {
+        dangling.add(member);
+      }
+    }
+    return dangling;
+  }
+
+  private static String uid(String dn) {
+    try {
+      RDN rdn = new DN(dn).getRDN();
+      return rdn != null && rdn.getAttributeNames().length == 1 && rdn.hasAttribute("uid") ? rdn.getAttributeValues()[0] : null;
+    } catch (LDAPException e) {
+      return null;
+    }
+  }
+
+  private void found(Problem problem, String dn, String detail) {
+    problems.merge(problem, 1, Integer::sum);
+    listener.found(problem, dn, detail);
+  }
+
+  // null for values that are not DNs at all
+  private static String normalize(String dn) {
+    try {
+      return DN.normalize(dn);
+    } catch (LDAPException e) {
+      return null;
+    }
+  }
+
+  // FNV-1a with the murmur3 finalizer; with a million users the chance that a dangling member collides with
+  // one of them is about 1e-7
+  static long hash(String normalizedDN) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < normalizedDN.length(); i++) {
+      h ^= normalizedDN.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  // open addressing set of longs, 0 marks a free slot and is stored as 1
+  static final class LongHashSet {
+    private long[] slots = new long[1024];
+    private int size;
+
+    void add(long value) {
+      if (2 * (size + 1) > slots.length) {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        for (long v : old) {
+          if (v != 0) {
+            slots[slot(v)] = v;
+          }
+        }
+      }
+      int slot = slot(value == 0 ? 1 : value);
+      if (slots[slot] == 0) {
+        slots[slot] = value == 0 ? 1 : value;
+        size++;
+      }
+    }
+
+    boolean contains(long value) {
+      return slots[slot(value == 0 ? 1 : value)] != 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    // the slot holding value or the free slot where it belongs
+    private int slot(long value) {
+      int mask = slots.length - 1;
+      int slot = (int) value & mask;
+      while (slots[slot] != 0 && slots[slot] != value) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+  }
+
+  // set of non-negative ints as bitmap pages of 2^16 numbers (8 KiB) allocated on first use, so that a few very
+  // large numbers do not cost a bitmap up to them
+  static final class IdSet {
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private final long[][] pages = new long[1 << (31 - PAGE_BITS)][];
+    private int max = -1;
+
+    // false if the number was already in the set
+    boolean add(int id) {
+      long[] page = pages[id >>> PAGE_BITS];
+      if (page == null) {
+        page = pages[id >>> PAGE_BITS] = new long[1 << (PAGE_BITS - 6)];
+      }
+      int word = (id & PAGE_MASK) >>> 6;
+      long bit = 1L << id;
+      if ((page[word] & bit) != 0) {
+        return false;
+      }
+      page[word] |= bit;
+      max = Math.max(max, id);
+      return true;
+    }
+
+    boolean contains(int id) {
+      long[] page = pages[id >>> PAGE_BITS];
+      return page != null && (page[(id & PAGE_MASK) >>> 6] & (1L << id)) != 0;
+    }
+
+    // -1 if empty
+    int max() {
+      return max;
+    }
+
+    // the smallest number >= from in the set, -1 if there is none
+    int next(int from) {
+      if (from < 0) {
+        return -1;
+      }
+      for (int p = from >>> PAGE_BITS; p < pages.length; p++) {
+        long[] page = pages[p];
+        if (page == null) {
+          continue;
+        }
+        int start = p == from >>> PAGE_BITS ? from & PAGE_MASK : 0;
+        for (int w = start >>> 6; w < page.length; w++) {
+          long word = w == start >>> 6 ? page[w] & (-1L << start) : page[w];
+          if (word != 0) {
+            return (p << PAGE_BITS) + (w << 6) + Long.numberOfTrailingZeros(word);
+          }
+        }
+      }
+      return -1;
+    }
+  }
+}
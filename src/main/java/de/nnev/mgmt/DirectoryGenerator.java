@@ -0,0 +1,162 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldif.LDIFWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+// deterministic synthetic directory content for tests and benchmarks: users scaleuser0..N-1, each with a user group,
+// and regular groups scalegroup0..M-1, group g has the members scaleuser(g)..scaleuser(g + members(g) - 1)
+public final class DirectoryGenerator {
+
+  public static final int FIRST_ID_NUMBER = 10000;
+
+  public enum Distribution {
+    // every group has the same number of members
+    uniform,
+    // group g has 1/(g + 1) of the members of the first group: a few large groups and a long tail of small ones
+    zipf
+  }
+
+  public interface EntryConsumer {
+    void accept(Entry entry) throws LDAPException;
+  }
+
+  private final int users;
+  private final int groups;
+  private final int membersPerGroup;
+  private final Distribution distribution;
+  private boolean sshKeys;
+
+  public DirectoryGenerator(int users, int groups, int membersPerGroup, Distribution distribution) {
+    if (users < 1 || groups < 0 || membersPerGroup < 0) {
+      throw new IllegalArgumentException("invalid directory size");
+    }
+    this.users = users;
+    this.groups = groups;
+    this.membersPerGroup = membersPerGroup;
+    this.distribution = distribution;
+  }
+
+  // gives every other user (the even ones) an SSH key
+  public DirectoryGenerator withSshKeys() {
+    sshKeys = true;
+    return this;
+  }
+
+  public int getUsers() {
+    return users;
+  }
+
+  public int getGroups() {
+    return groups;
+  }
+
+  // at most half of all users, so that every group has non-members
+  public int members(int g) {
+    int members = Math.min(users / 2, membersPerGroup);
+    return distribution == Distribution.zipf ? Math.max(1, members / (g + 1)) : members;
+  }
+
+  public List<String> memberUids(int g) {
+    int members = members(g);
+    List<String> uids = new ArrayList<>(members);
+    for (int i = 0; i < members; i++) {
+      uids.add(uid((g + i) % users));
+    }
+    return uids;
+  }
+
+  // the first uid and gid number not used by the generated entries
+  public int nextIdNumber() {
+    return FIRST_ID_NUMBER + users + groups;
+  }
+
+  // streams the entries parents first, nothing is kept in memory
+  public void generate(EntryConsumer consumer) throws LDAPException {
+    for (int i = 0; i < users; i++) {
+      String uid = uid(i);
+      consumer.accept(ManagerLDAP.createGroupEntry(uid, ManagerLDAP.GroupType.UserGroup, FIRST_ID_NUMBER + i));
+      Entry user = ManagerLDAP.createUserEntry(uid, "Generated User " + i, FIRST_ID_NUMBER + i, FIRST_ID_NUMBER + i, "/bin/bash", "/home/" + uid);
+      if (sshKeys && i % 2 == 0) {
+        user.addAttribute("sshPublicKey", sshKey(i));
+      }
+      consumer.accept(user);
+    }
+
+    for (int g = 0; g < groups; g++) {
+      Entry group = ManagerLDAP.createGroupEntry(group(g), ManagerLDAP.GroupType.RegularGroup, FIRST_ID_NUMBER + users + g);
+      List<String> memberDNs = new ArrayList<>(members(g));
+      for (String uid : memberUids(g)) {
+        memberDNs.add(ManagerLDAP.getUserDN(uid).toString());
+      }
+      if (!memberDNs.isEmpty()) {
+        group.addAttribute(new Attribute("member", memberDNs));
+      }
+      consumer.accept(group);
+    }
+  }
+
+  // adds the entries to a started test server and moves the counters behind the generated numbers
+  public void populate(TestInMemLdap ldap) throws LDAPException {
+    generate(ldap.srv::add);
+    ldap.srv.modify(ManagerLDAP.UID_DN, new Modification(ModificationType.REPLACE, "uidNumber", String.valueOf(nextIdNumber())));
+    ldap.srv.modify(ManagerLDAP.GID_DN, new Modification(ModificationType.REPLACE, "gidNumber", String.valueOf(nextIdNumber())));
+  }
+
+  // the entries only, the counters of the target directory have to be moved to nextIdNumber() separately
+  public void writeLdif(Path path) throws IOException, LDAPException {
+    try (var writer = new LDIFWriter(path.toFile())) {
+      writer.writeComment("generated: " + users + " users, " + groups + " groups (" + distribution + "), "
+        + "set the uid and gid counters to at least " + nextIdNumber(), false, true);
+      generate(entry -> {
+        try {
+          writer.writeEntry(entry);
+        } catch (IOException e) {
+          throw new LDAPException(ResultCode.LOCAL_ERROR, "Unable to write " + path, e);
+        }
+      });
+    }
+  }
+
+  public static String uid(int i) {
+    return "scaleuser" + i;
+  }
+
+  public static String group(int g) {
+    return "scalegroup" + g;
+  }
+
+  // syntactically valid ed25519 public key with a deterministic blob
+  public static String sshKey(int i) {
+    byte[] type = "ssh-ed25519".getBytes(StandardCharsets.US_ASCII);
+    byte[] key = new byte[32];
+    new Random(i).nextBytes(key);
+    ByteBuffer blob = ByteBuffer.allocate(4 + type.length + 4 + key.length);
+    blob.putInt(type.length).put(type).putInt(key.length).put(key);
+    return "ssh-ed25519 " + Base64.getEncoder().encodeToString(blob.array()) + " generated" + i;
+  }
+
+  // usage: DirectoryGenerator users groups members-per-group uniform|zipf output.ldif
+  public static void main(String[] args) throws IOException, LDAPException {
+    if (args.length != 5) {
+      System.err.println("usage: DirectoryGenerator users groups members-per-group uniform|zipf output.ldif");
+      System.exit(2);
+    }
+    new DirectoryGenerator(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), Distribution.valueOf(args[3]))
+      .withSshKeys()
+      .writeLdif(Path.of(args[4]));
+  }
+}
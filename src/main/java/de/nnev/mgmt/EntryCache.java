@@ -0,0 +1,277 @@
+package de.nnev.mgmt;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.*;
+import com.unboundid.ldap.sdk.controls.ContentSyncInfoIntermediateResponse;
+import com.unboundid.ldap.sdk.controls.ContentSyncInfoType;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestMode;
+import com.unboundid.ldap.sdk.controls.ContentSyncStateControl;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// bounded LRU cache with TTL for user and group lookups, keyed by lookup key and invalidated by DN. Entries are
+// shared by all callers and therefore read-only.
+public class EntryCache implements AutoCloseable {
+
+  private record Cached(String key, ReadOnlyEntry entry, long expiresAt) {
+  }
+
+  public interface Connector {
+    LDAPConnection connect() throws LDAPException;
+  }
+
+  private static final Filter WATCH_FILTER = Filter.createORFilter(ManagerLDAP.USER_FILTER, ManagerLDAP.GROUP_FILTER);
+  // a subscription ending sooner than this after it started is not renewed, the server keeps refusing it
+  private static final long RESUBSCRIBE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final int maxSize;
+  private final long ttlNanos;
+  private final LinkedHashMap<String, Cached> entries;
+  private final Map<DN, String> keysByDN = new HashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  private Connector connector;
+  private String baseDN;
+  private LDAPConnection watchConnection;
+  private long subscribedAt;
+  // sync state after the last change seen, a new subscription continues from there instead of a full refresh
+  private ASN1OctetString cookie;
+  private boolean closed;
+
+  public EntryCache(int maxSize, Duration ttl) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("cache size must be positive");
+    }
+    this.maxSize = maxSize;
+    this.ttlNanos = ttl.toNanos();
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  public synchronized Entry get(String key) {
+    Cached cached = entries.get(key);
+    if (cached == null) {
+      misses.increment();
+      return null;
+    }
+    if (System.nanoTime() - cached.expiresAt() > 0) {
+      remove(cached);
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return cached.entry();
+  }
+
+  // like get, but not counted as a hit or miss: for checks whether an entry exists, which mostly ask for names
+  // that are not taken
+  public synchronized boolean contains(String key) {
+    Cached cached = entries.get(key);
+    return cached != null && System.nanoTime() - cached.expiresAt() <= 0;
+  }
+
+  // returns the cached read-only copy
+  public synchronized Entry put(String key, Entry entry) throws LDAPException {
+    Cached previous = entries.remove(key);
+    if (previous != null) {
+      keysByDN.remove(previous.entry().getParsedDN());
+    }
+
+    var cached = new Cached(key, new ReadOnlyEntry(entry), System.nanoTime() + ttlNanos);
+    entries.put(key, cached);
+    keysByDN.put(entry.getParsedDN(), key);
+
+    if (entries.size() > maxSize) {
+      remove(entries.values().iterator().next());
+    }
+    return cached.entry();
+  }
+
+  public synchronized void invalidate(DN dn) {
+    String key = keysByDN.get(dn);
+    if (key != null) {
+      remove(entries.get(key));
+      invalidations.increment();
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    keysByDN.clear();
+  }
+
+  private void remove(Cached cached) {
+    entries.remove(cached.key());
+    try {
+      keysByDN.remove(cached.entry().getParsedDN());
+    } catch (LDAPException ignored) {
+      // an entry with an unparsable DN never made it into the cache
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getInvalidations() {
+    return invalidations.sum();
+  }
+
+  // subscribes to syncrepl change notifications (RFC 4533 refreshAndPersist) for users and groups on a dedicated
+  // connection and invalidates every entry the server reports as changed; returns false if the server does not
+  // support it, in which case only our own writes and the TTL keep the cache fresh. Only DNs are requested. If the
+  // connection is lost, a new one subscribes again with the last cookie, so that only the changes in between are sent.
+  public boolean watch(Connector connector, String baseDN) throws LDAPException {
+    LDAPConnection conn = connector.connect();
+    try {
+      RootDSE rootDSE = conn.getRootDSE();
+      if (rootDSE == null || !rootDSE.supportsControl(ContentSyncRequestControl.SYNC_REQUEST_OID)) {
+        conn.close();
+        return false;
+      }
+      synchronized (this) {
+        this.connector = connector;
+        this.baseDN = baseDN;
+      }
+      subscribe(conn);
+      return true;
+    } catch (LDAPException e) {
+      conn.close();
+      throw e;
+    }
+  }
+
+  private void subscribe(LDAPConnection conn) throws LDAPException {
+    ASN1OctetString resumeFrom;
+    synchronized (this) {
+      if (closed) {
+        conn.close();
+        return;
+      }
+      watchConnection = conn;
+      subscribedAt = System.nanoTime();
+      resumeFrom = cookie;
+    }
+
+    var listener = new WatchListener(conn);
+    var request = new SearchRequest(listener, baseDN, SearchScope.SUB, WATCH_FILTER, SearchRequest.NO_ATTRIBUTES);
+    request.setIntermediateResponseListener(listener);
+    request.addControl(new ContentSyncRequestControl(true, ContentSyncRequestMode.REFRESH_AND_PERSIST, resumeFrom, false));
+    try {
+      conn.asyncSearch(request);
+    } catch (LDAPException e) {
+      synchronized (this) {
+        if (watchConnection == conn) {
+          watchConnection = null;
+        }
+      }
+      conn.close();
+      throw e;
+    }
+  }
+
+  private final class WatchListener implements AsyncSearchResultListener, IntermediateResponseListener {
+    private final LDAPConnection conn;
+
+    WatchListener(LDAPConnection conn) {
+      this.conn = conn;
+    }
+
+    @Override
+    public void searchEntryReturned(SearchResultEntry searchEntry) {
+      try {
+        invalidate(searchEntry.getParsedDN());
+        ContentSyncStateControl state = ContentSyncStateControl.get(searchEntry);
+        if (state != null && state.getCookie() != null) {
+          synced(state.getCookie());
+        }
+      } catch (LDAPException ignored) {
+      }
+    }
+
+    @Override
+    public void searchReferenceReturned(SearchResultReference searchReference) {
+    }
+
+    @Override
+    public void intermediateResponseReturned(IntermediateResponse intermediateResponse) {
+      if (!ContentSyncInfoIntermediateResponse.SYNC_INFO_OID.equals(intermediateResponse.getOID())) {
+        return;
+      }
+      try {
+        var info = new ContentSyncInfoIntermediateResponse(intermediateResponse);
+        // deleted or remaining entries reported by entryUUID only can't be mapped to cached DNs
+        if (info.getContentSyncInfoType() == ContentSyncInfoType.SYNC_ID_SET) {
+          clear();
+        }
+        if (info.getCookie() != null) {
+          synced(info.getCookie());
+        }
+      } catch (LDAPException ignored) {
+      }
+    }
+
+    // the persistent search only ends if the connection is lost or the server gives up, changes in between are missed
+    @Override
+    public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult) {
+      clear();
+      Connector reconnect;
+      synchronized (EntryCache.this) {
+        if (watchConnection != conn) {
+          return;
+        }
+        watchConnection = null;
+        if (searchResult.getResultCode() == ResultCode.E_SYNC_REFRESH_REQUIRED) {
+          cookie = null;
+        }
+        reconnect = !closed && System.nanoTime() - subscribedAt > RESUBSCRIBE_NANOS ? connector : null;
+      }
+      conn.close();
+      if (reconnect != null) {
+        // not on the reader thread of the lost connection
+        Thread.ofVirtual().start(() -> {
+          try {
+            subscribe(reconnect.connect());
+          } catch (LDAPException ignored) {
+            // the TTL keeps the cache fresh from now on
+          }
+        });
+      }
+    }
+  }
+
+  private synchronized void synced(ASN1OctetString cookie) {
+    this.cookie = cookie;
+  }
+
+  // stops the change notifications
+  @Override
+  public void close() {
+    LDAPConnection conn;
+    synchronized (this) {
+      closed = true;
+      conn = watchConnection;
+      watchConnection = null;
+    }
+    // outside the lock, the end of the search is reported on the connection's reader thread
+    if (conn != null) {
+      conn.close();
+    }
+  }
+}
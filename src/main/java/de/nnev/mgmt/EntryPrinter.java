@@ -0,0 +1,94 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.util.json.JSONArray;
+import com.unboundid.util.json.JSONObject;
+import com.unboundid.util.json.JSONString;
+import com.unboundid.util.json.JSONValue;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// writes entries as they are returned by a search, one line per entry
+class EntryPrinter implements Consumer<SearchResultEntry> {
+
+  public enum Format {
+    // the requested attributes separated by tabs, multiple values separated by commas, missing ones as -;
+    // backslashes, commas, tabs and line breaks within values and a value - are escaped with a backslash
+    text,
+    // one object per entry with the dn and an array for every returned attribute
+    json
+  }
+
+  private final PrintWriter out;
+  private final Format format;
+  private final List<String> attributes;
+
+  EntryPrinter(PrintWriter out, Format format, List<String> attributes) {
+    this.out = out;
+    this.format = format;
+    this.attributes = attributes;
+  }
+
+  @Override
+  public void accept(SearchResultEntry entry) {
+    out.println(format == Format.json ? toJson(entry) : toText(entry));
+  }
+
+  private String toText(SearchResultEntry entry) {
+    var line = new StringBuilder();
+    for (String attribute : attributes) {
+      if (!line.isEmpty()) {
+        line.append('\t');
+      }
+      String[] values = entry.getAttributeValues(attribute);
+      if (values == null || values.length == 0) {
+        line.append('-');
+        continue;
+      }
+      for (int i = 0; i < values.length; i++) {
+        if (i > 0) {
+          line.append(',');
+        }
+        escape(line, values[i]);
+      }
+    }
+    return line.toString();
+  }
+
+  private static void escape(StringBuilder line, String value) {
+    // not to be confused with a missing attribute
+    if (value.equals("-")) {
+      line.append("\\-");
+      return;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\', ',' -> line.append('\\').append(c);
+        case '\t' -> line.append("\\t");
+        case '\n' -> line.append("\\n");
+        case '\r' -> line.append("\\r");
+        default -> line.append(c);
+      }
+    }
+  }
+
+  private static String toJson(SearchResultEntry entry) {
+    Map<String, JSONValue> fields = new LinkedHashMap<>();
+    fields.put("dn", new JSONString(entry.getDN()));
+    for (Attribute attribute : entry.getAttributes()) {
+      List<JSONValue> values = new ArrayList<>(attribute.size());
+      for (String value : attribute.getValues()) {
+        values.add(new JSONString(value));
+      }
+      fields.put(attribute.getName(), new JSONArray(values));
+    }
+    return new JSONObject(fields).toSingleLineString();
+  }
+}
@@ -0,0 +1,216 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.*;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestMode;
+import com.unboundid.ldap.sdk.controls.ContentSyncState;
+import com.unboundid.ldap.sdk.controls.ContentSyncStateControl;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+// hands out the lowest number in [first, last] that no account (or group) uses, so that the numbers of deleted
+// entries are reused. The numbers in use are loaded with one paged search into a bitmap of the range, which is then
+// kept up to date by our own allocations and, if watch() succeeded, by the changes the server reports.
+//
+// Numbers at or above the counter are claimed by bumping the counter, so counter based allocators never hand them
+// out again. Gaps below the counter are only re-checked with a search right before they are handed out, they are not
+// reserved: numbers that BlockIdAllocator or UserImporter took from the counter but did not write yet look free, so
+// gap filling must not run alongside them (Manager refuses the combination within one process). Two processes
+// filling gaps at the same time can also pick the same number, audit reports such duplicates.
+public class GapIdAllocator implements IdAllocator {
+
+  public static final int DEFAULT_FIRST = 1000;
+  public static final int DEFAULT_LAST = 59999;
+
+  private static final int PAGE_SIZE = 1000;
+  // without change notifications freed numbers are only noticed when the bitmap is reloaded
+  private static final long UNWATCHED_RELOAD_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  private final ManagerLDAP u;
+  private final String dn;
+  private final String attributeName;
+  private final int first;
+  private final int last;
+
+  // bit i is set if first + i is in use, null until loaded or after a deletion was reported
+  private BitSet used;
+  private long loadedAt;
+  private LDAPConnection watchConnection;
+
+  public GapIdAllocator(ManagerLDAP u, String dn, String attributeName, int first, int last) {
+    if (first < 0 || last < first) {
+      throw new IllegalArgumentException("invalid id range " + first + "-" + last);
+    }
+    this.u = u;
+    this.dn = dn;
+    this.attributeName = attributeName;
+    this.first = first;
+    this.last = last;
+  }
+
+  @Override
+  public synchronized int next() throws LDAPException {
+    for (int number = nextFree(first); ; number = nextFree(number + 1)) {
+      if (number < 0) {
+        throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM, "No free " + attributeName + " left in " + first + "-" + last);
+      }
+      used.set(number - first);
+      if (claim(number)) {
+        return number;
+      }
+    }
+  }
+
+  // the number is only free again according to the bitmap, the counter stays where it is
+  @Override
+  public synchronized void release(int number) {
+    if (used != null && number >= first && number <= last) {
+      used.clear(number - first);
+    }
+  }
+
+  // the lowest number free as uid and as gid, for users whose user group gets the same number
+  public static int nextPair(GapIdAllocator uids, GapIdAllocator gids) throws LDAPException {
+    synchronized (uids) {
+      synchronized (gids) {
+        int number = Math.max(uids.first, gids.first);
+        while (true) {
+          int uidNumber = uids.nextFree(number);
+          int gidNumber = uidNumber < 0 ? -1 : gids.nextFree(uidNumber);
+          if (uidNumber < 0 || gidNumber < 0) {
+            throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM, "No number left that is free as uidNumber and as gidNumber");
+          }
+          if (gidNumber != uidNumber) {
+            number = gidNumber;
+            continue;
+          }
+
+          uids.used.set(number - uids.first);
+          gids.used.set(number - gids.first);
+          // a uid claimed for nothing because the gid was taken is only a gap until the next reload
+          if (uids.claim(number) && gids.claim(number)) {
+            return number;
+          }
+          number++;
+        }
+      }
+    }
+  }
+
+  // the lowest free number >= from according to the bitmap, -1 if there is none in the range
+  private int nextFree(int from) throws LDAPException {
+    if (used == null || (watchConnection == null && System.nanoTime() - loadedAt > UNWATCHED_RELOAD_NANOS)) {
+      load();
+    }
+    if (from > last) {
+      return -1;
+    }
+    int number = first + used.nextClearBit(Math.max(0, from - first));
+    return number <= last ? number : -1;
+  }
+
+  private void load() throws LDAPException {
+    BitSet loaded = new BitSet(last - first + 1);
+    u.forEachEntry(ManagerLDAP.LDAP_BASE, filter(), PAGE_SIZE, entry -> {
+      Integer number = entry.getAttributeValueAsInteger(attributeName);
+      if (number != null && number >= first && number <= last) {
+        loaded.set(number - first);
+      }
+    }, attributeName);
+    used = loaded;
+    loadedAt = System.nanoTime();
+  }
+
+  private Filter filter() {
+    return Filter.createANDFilter(ManagerLDAP.idNumberHolderFilter(attributeName), Filter.createPresenceFilter(attributeName));
+  }
+
+  // false if the number turned out to be taken
+  private boolean claim(int number) throws LDAPException {
+    if (u.isPosixIdNumberInUse(attributeName, number, number + 1)) {
+      return false;
+    }
+    int counter = u.getPosixIdCounter(dn, attributeName);
+    // if the counter moved in the meantime, somebody else may have gotten the number from it
+    return number < counter || u.setPosixIdCounter(dn, attributeName, counter, number + 1);
+  }
+
+  // subscribes to syncrepl change notifications (RFC 4533 refreshAndPersist) on a dedicated connection: numbers of
+  // added or changed entries are marked as used, a deletion makes the next allocation reload the bitmap. Returns false
+  // if the server does not support it, the bitmap is then reloaded every 10 minutes.
+  public synchronized boolean watch(LDAPConnection conn) throws LDAPException {
+    RootDSE rootDSE = conn.getRootDSE();
+    if (rootDSE == null || !rootDSE.supportsControl(ContentSyncRequestControl.SYNC_REQUEST_OID)) {
+      return false;
+    }
+
+    var request =
+      new SearchRequest(
+        new AsyncSearchResultListener() {
+          @Override
+          public void searchEntryReturned(SearchResultEntry searchEntry) {
+            changed(searchEntry);
+          }
+
+          @Override
+          public void searchReferenceReturned(SearchResultReference searchReference) {
+          }
+
+          // the persistent search only ends if the connection is lost, from then on we would miss changes
+          @Override
+          public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult) {
+            unwatched();
+          }
+        },
+        ManagerLDAP.LDAP_BASE,
+        SearchScope.SUB,
+        filter(),
+        attributeName);
+    request.addControl(new ContentSyncRequestControl(ContentSyncRequestMode.REFRESH_AND_PERSIST));
+    conn.asyncSearch(request);
+    watchConnection = conn;
+    return true;
+  }
+
+  private synchronized void changed(SearchResultEntry entry) {
+    if (used == null) {
+      return;
+    }
+
+    ContentSyncStateControl state;
+    try {
+      state = ContentSyncStateControl.get(entry);
+    } catch (LDAPException e) {
+      state = null;
+    }
+    if (state != null && state.getState() == ContentSyncState.DELETE) {
+      used = null;
+      return;
+    }
+    // the old number of a changed entry stays marked until the next reload
+    Integer number = entry.getAttributeValueAsInteger(attributeName);
+    if (number != null && number >= first && number <= last) {
+      used.set(number - first);
+    }
+  }
+
+  private synchronized void unwatched() {
+    watchConnection = null;
+    used = null;
+  }
+
+  // nothing is reserved ahead, only the change notifications are stopped
+  @Override
+  public void close() {
+    LDAPConnection conn;
+    synchronized (this) {
+      conn = watchConnection;
+      watchConnection = null;
+    }
+    // outside the lock, the end of the search is reported on the connection's reader thread
+    if (conn != null) {
+      conn.close();
+    }
+  }
+}
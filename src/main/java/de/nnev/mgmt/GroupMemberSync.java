@@ -0,0 +1,158 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.*;
+
+import static com.unboundid.ldap.sdk.ModificationType.ADD;
+import static com.unboundid.ldap.sdk.ModificationType.DELETE;
+
+// makes the members of a group match a list of uids with as few and as large modifies as possible;
+// only the current members and the uids seen so far are held in memory, the list itself is streamed. That is
+// O(members), but the group entry holding all member values has to be read as a whole anyway.
+//
+// Removals are only applied once the whole list is read. If more than maxRemovePercent of the members would be
+// removed, nothing is removed and the sync fails, since an empty or truncated list looks just like that. A dry run
+// still reports the refused removals, so that they can be reviewed before forcing them.
+public class GroupMemberSync {
+
+  public static final int DEFAULT_MAX_REMOVE_PERCENT = 20;
+  // removing a few members of a small group is a large share, but not what the check is about
+  private static final int UNCHECKED_REMOVALS = 10;
+
+  public interface Listener {
+    void added(String group, String memberDN);
+
+    void removed(String group, String memberDN);
+
+    void unknownUser(String group, String uid);
+  }
+
+  public record Result(int added, int removed, int unknownUsers) {
+  }
+
+  private final ManagerLDAP u;
+  private final int batchSize;
+  private final boolean dryRun;
+  private final int maxRemovePercent;
+  private final Listener listener;
+
+  // maxRemovePercent 100 disables the check
+  public GroupMemberSync(ManagerLDAP u, int batchSize, boolean dryRun, int maxRemovePercent, Listener listener) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batch size must be positive");
+    }
+    if (maxRemovePercent < 0 || maxRemovePercent > 100) {
+      throw new IllegalArgumentException("maximum share of removed members must be 0-100%");
+    }
+    this.u = u;
+    this.batchSize = batchSize;
+    this.dryRun = dryRun;
+    this.maxRemovePercent = maxRemovePercent;
+    this.listener = listener;
+  }
+
+  // reads one uid per line, empty lines and lines starting with # are ignored
+  public Result sync(String gid, BufferedReader desiredUids) throws IOException, LDAPException {
+    Entry group = u.getGroupEntry(gid, "member");
+    DN groupDN = group.getParsedDN();
+
+    // normalized DN -> DN as stored, whatever is left after reading the list has to be removed
+    Map<String, String> obsolete = new HashMap<>();
+    String[] members = group.getAttributeValues("member");
+    if (members != null) {
+      for (String member : members) {
+        obsolete.put(DN.normalize(member), member);
+      }
+    }
+
+    Set<String> seen = new HashSet<>();
+    List<String> batch = new ArrayList<>(batchSize);
+    List<String> additions = new ArrayList<>(batchSize);
+    int added = 0;
+    int unknownUsers = 0;
+
+    boolean eof = false;
+    while (!eof) {
+      String line = desiredUids.readLine();
+      eof = line == null;
+      if (!eof) {
+        String uid = line.trim().toLowerCase();
+        if (uid.isEmpty() || uid.startsWith("#") || !seen.add(uid)) {
+          continue;
+        }
+        batch.add(uid);
+        if (batch.size() < batchSize) {
+          continue;
+        }
+      }
+
+      Map<String, String> userDNs = u.resolveUserDNs(batch);
+      for (String uid : batch) {
+        String userDN = userDNs.get(uid);
+        if (userDN == null) {
+          unknownUsers++;
+          listener.unknownUser(gid, uid);
+        } else if (obsolete.remove(DN.normalize(userDN)) == null) {
+          additions.add(userDN);
+        }
+      }
+      batch.clear();
+
+      if (additions.size() >= batchSize || (eof && !additions.isEmpty())) {
+        apply(gid, groupDN, ADD, additions);
+        added += additions.size();
+        additions.clear();
+      }
+    }
+
+    String refusal = checkRemovals(gid, obsolete.size(), members != null ? members.length : 0, seen.size());
+    if (refusal != null) {
+      if (dryRun) {
+        for (String memberDN : obsolete.values()) {
+          listener.removed(gid, memberDN);
+        }
+      }
+      throw new RuntimeException(refusal);
+    }
+
+    List<String> removals = new ArrayList<>(batchSize);
+    for (String memberDN : obsolete.values()) {
+      removals.add(memberDN);
+      if (removals.size() == batchSize) {
+        apply(gid, groupDN, DELETE, removals);
+        removals.clear();
+      }
+    }
+    apply(gid, groupDN, DELETE, removals);
+
+    return new Result(added, obsolete.size(), unknownUsers);
+  }
+
+  // the reason for refusing the removals, null if they may be applied
+  private String checkRemovals(String gid, int removals, int members, int listed) {
+    if (removals == 0 || (listed > 0 && removals <= UNCHECKED_REMOVALS)) {
+      return null;
+    }
+    if (removals * 100L <= (long) maxRemovePercent * members) {
+      return null;
+    }
+    return "Refusing to remove " + removals + " of the " + members + " members of " + gid
+      + " (more than " + maxRemovePercent + "%), the list of " + listed + " user names may be empty or truncated";
+  }
+
+  private void apply(String gid, DN groupDN, ModificationType modificationType, List<String> memberDNs) throws LDAPException {
+    if (!dryRun) {
+      u.modifyMembers(groupDN, modificationType, memberDNs);
+    }
+    for (String memberDN : memberDNs) {
+      if (modificationType == ADD) {
+        listener.added(gid, memberDN);
+      } else {
+        listener.removed(gid, memberDN);
+      }
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+
+public interface IdAllocator extends AutoCloseable {
+
+  int next() throws LDAPException;
+
+  // takes back a number from next() that ended up unused, e.g. because its entry could not be added
+  default void release(int number) throws LDAPException {
+  }
+
+  // gives back numbers that were reserved but never handed out
+  @Override
+  default void close() throws LDAPException {
+  }
+}
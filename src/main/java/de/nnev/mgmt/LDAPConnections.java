@@ -0,0 +1,43 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+
+final class LDAPConnections {
+
+  private LDAPConnections() {
+  }
+
+  // returns a dedicated connection for operations that need one (async requests, ...) or null if the
+  // interface does not offer one; behind a replica router this is a connection to the primary
+  static LDAPConnection checkout(LDAPInterface ldap) throws LDAPException {
+    ldap = ReplicaRouter.unwrap(LDAPStats.unwrap(ldap));
+    if (ldap instanceof LDAPConnection conn) {
+      return conn;
+    }
+    if (ldap instanceof LDAPConnectionPool pool) {
+      return pool.getConnection();
+    }
+    return null;
+  }
+
+  // like checkout, for reads only; behind a replica router this may be a connection to a replica
+  static LDAPConnection checkoutForReads(LDAPInterface ldap) throws LDAPException {
+    ReplicaRouter router = ReplicaRouter.of(LDAPStats.unwrap(ldap));
+    return router != null ? router.checkoutForReads() : checkout(ldap);
+  }
+
+  static void release(LDAPInterface ldap, LDAPConnection conn) {
+    if (conn == null) {
+      return;
+    }
+    ReplicaRouter router = ReplicaRouter.of(LDAPStats.unwrap(ldap));
+    if (router != null) {
+      router.release(conn);
+    } else if (LDAPStats.unwrap(ldap) instanceof LDAPConnectionPool pool) {
+      pool.releaseConnection(conn);
+    }
+  }
+}
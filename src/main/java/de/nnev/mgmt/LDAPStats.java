@@ -0,0 +1,331 @@
+package de.nnev.mgmt;
+
+import com.sun.net.httpserver.HttpServer;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncResultListener;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchResult;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// counts the round trips, latencies and returned entries of the operations going through an LDAPInterface
+// wrapped by instrument(), per operation type and per ManagerLDAP method causing them. Connections handed out by
+// LDAPConnections.checkout bypass the wrapper, operations on them are counted through instrumentLike() and start().
+// Connections that are not wrapped are not touched at all, so there is no overhead unless statistics were asked for.
+public final class LDAPStats {
+
+  private static final String METRIC_PREFIX = "ldap_user_mgmt_";
+  private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+
+  record Key(String method, String operation) {
+  }
+
+  // latencies in buckets by powers of two microseconds: bucket i counts latencies below 2^i µs
+  static final class Histogram {
+    static final int BUCKETS = 25;
+
+    final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    final LongAdder count = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder nanos = new LongAdder();
+    final LongAdder entries = new LongAdder();
+    final LongAdder valueBytes = new LongAdder();
+
+    void record(long elapsedNanos, boolean error, long returnedEntries, long returnedValueBytes) {
+      long micros = elapsedNanos / 1000;
+      int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+      buckets.incrementAndGet(bucket);
+      count.increment();
+      nanos.add(elapsedNanos);
+      if (error) {
+        errors.increment();
+      }
+      entries.add(returnedEntries);
+      valueBytes.add(returnedValueBytes);
+    }
+
+    void add(Histogram other) {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets.addAndGet(i, other.buckets.get(i));
+      }
+      count.add(other.count.sum());
+      errors.add(other.errors.sum());
+      nanos.add(other.nanos.sum());
+      entries.add(other.entries.sum());
+      valueBytes.add(other.valueBytes.sum());
+    }
+
+    // upper bound of the bucket containing the percentile
+    long percentileMicros(double percentile) {
+      long rank = (long) Math.ceil(count.sum() * percentile);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return 1L << i;
+        }
+      }
+      return 1L << (BUCKETS - 1);
+    }
+  }
+
+  private final Map<Key, Histogram> histograms = new ConcurrentHashMap<>();
+
+  public LDAPInterface instrument(LDAPInterface target) {
+    return (LDAPInterface) Proxy.newProxyInstance(
+      LDAPInterface.class.getClassLoader(),
+      new Class<?>[]{LDAPInterface.class},
+      new Handler(target));
+  }
+
+  // the wrapped interface for operations that need the connection itself (async requests, transactions, ...)
+  static LDAPInterface unwrap(LDAPInterface ldap) {
+    Handler handler = handler(ldap);
+    return handler != null ? handler.target : ldap;
+  }
+
+  // conn counted by the same statistics as ldap, conn itself if ldap is not instrumented
+  static LDAPInterface instrumentLike(LDAPInterface ldap, LDAPInterface conn) {
+    Handler handler = handler(ldap);
+    return handler != null ? handler.stats().instrument(conn) : conn;
+  }
+
+  // times a request that is not an LDAPInterface method (async requests, extended operations) on a connection
+  // checked out of ldap. Async requests count towards the given method, they are often sent from callbacks.
+  static Timer start(LDAPInterface ldap, String operation) {
+    return start(ldap, null, operation);
+  }
+
+  static Timer start(LDAPInterface ldap, String method, String operation) {
+    Handler handler = handler(ldap);
+    if (handler == null) {
+      return Timer.NONE;
+    }
+    return new Timer(handler.stats().histogram(new Key(method != null ? method : caller(), operation)));
+  }
+
+  private static Handler handler(LDAPInterface ldap) {
+    if (Proxy.isProxyClass(ldap.getClass()) && Proxy.getInvocationHandler(ldap) instanceof Handler handler) {
+      return handler;
+    }
+    return null;
+  }
+
+  static final class Timer implements AsyncResultListener {
+    static final Timer NONE = new Timer(null);
+
+    private final Histogram histogram;
+    private final long start = System.nanoTime();
+
+    private Timer(Histogram histogram) {
+      this.histogram = histogram;
+    }
+
+    void stop(LDAPResult result) {
+      if (histogram != null) {
+        histogram.record(System.nanoTime() - start, result.getResultCode() != ResultCode.SUCCESS, entries(result), valueBytes(result));
+      }
+    }
+
+    void stop(LDAPException e) {
+      stop(e.toLDAPResult());
+    }
+
+    @Override
+    public void ldapResultReceived(AsyncRequestID requestID, LDAPResult ldapResult) {
+      stop(ldapResult);
+    }
+  }
+
+  private final class Handler implements InvocationHandler {
+    private final LDAPInterface target;
+
+    Handler(LDAPInterface target) {
+      this.target = target;
+    }
+
+    LDAPStats stats() {
+      return LDAPStats.this;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        return method.invoke(target, args);
+      }
+
+      long start = System.nanoTime();
+      Object result = null;
+      boolean error = false;
+      try {
+        result = method.invoke(target, args);
+        return result;
+      } catch (InvocationTargetException e) {
+        error = true;
+        throw e.getCause();
+      } finally {
+        long elapsed = System.nanoTime() - start;
+        histogram(new Key(caller(), operation(method))).record(elapsed, error, entries(result), valueBytes(result));
+      }
+    }
+  }
+
+  private Histogram histogram(Key key) {
+    return histograms.computeIfAbsent(key, k -> new Histogram());
+  }
+
+  // the outermost ManagerLDAP method on the stack, so that the operations of e.g. addGroup count towards
+  // addUserWithUserGroup when called from there
+  private static String caller() {
+    return STACK_WALKER.walk(frames -> frames
+      .filter(frame -> frame.getClassName().equals(ManagerLDAP.class.getName()) && !frame.getMethodName().startsWith("lambda$"))
+      .reduce((inner, outer) -> outer)
+      .map(StackWalker.StackFrame::getMethodName)
+      .orElse("other"));
+  }
+
+  private static String operation(Method method) {
+    return switch (method.getName()) {
+      case "getEntry", "search", "searchForEntry", "getRootDSE", "getSchema" -> "search";
+      case "modifyDN" -> "modrdn";
+      default -> method.getName();
+    };
+  }
+
+  private static long entries(Object result) {
+    if (result instanceof SearchResult searchResult) {
+      return searchResult.getEntryCount();
+    }
+    return result instanceof Entry ? 1 : 0;
+  }
+
+  // the size of the returned DNs and attribute values, not of the encoded responses on the wire; entries passed to
+  // search result listeners are not seen here
+  private static long valueBytes(Object result) {
+    long bytes = 0;
+    if (result instanceof SearchResult searchResult && searchResult.getSearchEntries() != null) {
+      for (Entry entry : searchResult.getSearchEntries()) {
+        bytes += valueBytes(entry);
+      }
+    } else if (result instanceof Entry entry) {
+      bytes += valueBytes(entry);
+    }
+    return bytes;
+  }
+
+  private static long valueBytes(Entry entry) {
+    long bytes = entry.getDN().length();
+    for (Attribute attribute : entry.getAttributes()) {
+      for (byte[] value : attribute.getValueByteArrays()) {
+        bytes += value.length;
+      }
+    }
+    return bytes;
+  }
+
+  public long getRoundTrips() {
+    return histograms.values().stream().mapToLong(histogram -> histogram.count.sum()).sum();
+  }
+
+  public void printSummary(PrintWriter out) {
+    Map<String, Histogram> byOperation = new TreeMap<>();
+    Map<String, Histogram> byMethod = new TreeMap<>();
+    for (var entry : histograms.entrySet()) {
+      byOperation.computeIfAbsent(entry.getKey().operation(), k -> new Histogram()).add(entry.getValue());
+      byMethod.computeIfAbsent(entry.getKey().method(), k -> new Histogram()).add(entry.getValue());
+    }
+
+    out.println("LDAP round trips: " + getRoundTrips());
+    printTable(out, "operation", byOperation);
+    printTable(out, "method", byMethod);
+    out.flush();
+  }
+
+  private static void printTable(PrintWriter out, String label, Map<String, Histogram> histograms) {
+    out.printf("%-28s %8s %6s %8s %11s %10s %9s %9s%n", label, "count", "errors", "entries", "value bytes", "total ms", "p50 us<", "p99 us<");
+    histograms.entrySet().stream()
+      .sorted(Comparator.comparing((Map.Entry<String, Histogram> e) -> e.getValue().nanos.sum()).reversed())
+      .forEach(e -> {
+        Histogram h = e.getValue();
+        out.printf("%-28s %8d %6d %8d %11d %10.2f %9d %9d%n",
+          e.getKey(), h.count.sum(), h.errors.sum(), h.entries.sum(), h.valueBytes.sum(), h.nanos.sum() / 1e6,
+          h.percentileMicros(0.5), h.percentileMicros(0.99));
+      });
+  }
+
+  // Prometheus text exposition format
+  public String toPrometheus() {
+    var text = new StringBuilder();
+    text.append("# TYPE ").append(METRIC_PREFIX).append("operation_duration_seconds histogram\n");
+    for (var entry : histograms.entrySet()) {
+      String labels = labels(entry.getKey());
+      Histogram h = entry.getValue();
+      long cumulative = 0;
+      for (int i = 0; i < Histogram.BUCKETS - 1; i++) {
+        cumulative += h.buckets.get(i);
+        metric(text, "operation_duration_seconds_bucket", labels + ",le=\"" + (1L << i) / 1e6 + "\"", cumulative);
+      }
+      metric(text, "operation_duration_seconds_bucket", labels + ",le=\"+Inf\"", h.count.sum());
+      metric(text, "operation_duration_seconds_sum", labels, h.nanos.sum() / 1e9);
+      metric(text, "operation_duration_seconds_count", labels, h.count.sum());
+    }
+
+    counter(text, "operation_errors_total", h -> h.errors.sum());
+    counter(text, "entries_returned_total", h -> h.entries.sum());
+    counter(text, "value_bytes_returned_total", h -> h.valueBytes.sum());
+    return text.toString();
+  }
+
+  private interface Value {
+    long of(Histogram histogram);
+  }
+
+  private void counter(StringBuilder text, String name, Value value) {
+    text.append("# TYPE ").append(METRIC_PREFIX).append(name).append(" counter\n");
+    for (var entry : histograms.entrySet()) {
+      metric(text, name, labels(entry.getKey()), value.of(entry.getValue()));
+    }
+  }
+
+  private static void metric(StringBuilder text, String name, String labels, Object value) {
+    text.append(METRIC_PREFIX).append(name).append('{').append(labels).append("} ").append(value).append('\n');
+  }
+
+  // method and operation names are Java identifiers, nothing to escape
+  private static String labels(Key key) {
+    return "method=\"" + key.method() + "\",operation=\"" + key.operation() + "\"";
+  }
+
+  // serves the metrics on http://address/metrics until the returned server is stopped
+  public HttpServer exportMetrics(InetSocketAddress address) throws IOException {
+    HttpServer server = HttpServer.create(address, 0);
+    server.createContext("/metrics", exchange -> {
+      byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (var out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+    return server;
+  }
+}
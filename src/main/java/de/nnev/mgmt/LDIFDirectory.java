@@ -0,0 +1,725 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.*;
+import com.unboundid.ldap.sdk.controls.PermissiveModifyRequestControl;
+import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
+import com.unboundid.ldap.sdk.schema.Schema;
+import com.unboundid.ldif.LDIFAddChangeRecord;
+import com.unboundid.ldif.LDIFChangeRecord;
+import com.unboundid.ldif.LDIFDeleteChangeRecord;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFModifyChangeRecord;
+import com.unboundid.ldif.LDIFReader;
+import com.unboundid.ldif.LDIFWriter;
+import com.unboundid.util.StaticUtils;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+// an LDAPInterface on an LDIF export (slapcat) for preparing large changes without a server; the result is loaded
+// with slapadd (writeLDIF) or ldapmodify (writeChanges). Opening scans the file once and keeps only 64-bit hashes of
+// the DNs and of the uid, cn, uidNumber and gidNumber values, pointing to the byte offsets of the records, which are
+// read from the file again when needed. Added and changed entries are held in an overlay in memory.
+//
+// Searches the index can't narrow down (list-users, ...) stream the whole file. Deletes don't check for children,
+// compare and modify DN are not supported.
+public final class LDIFDirectory implements AutoCloseable {
+
+  private static final Set<String> INDEXED = Set.of("uid", "cn", "uidnumber", "gidnumber");
+  private static final Set<String> NUMERIC = Set.of("uidnumber", "gidnumber");
+  // range filters up to this span (id number checks) are answered by looking up every number
+  private static final int MAX_INDEXED_RANGE = 1024;
+
+  private interface RecordHandler {
+    void record(long offset, byte[] raw, Entry entry) throws IOException, LDAPException;
+  }
+
+  private final Path path;
+  private final FileChannel channel;
+  private final Schema schema;
+
+  // DN hash -> record offset, value hash -> entry id; ids >= 0 are record offsets, id -(n + 1) is overlay slot n.
+  // Values of changed entries are indexed again under their slot, stale ids are weeded out by matching the entry.
+  private final LongMultimap dnIndex = new LongMultimap();
+  private final LongMultimap valueIndex = new LongMultimap();
+
+  // normalized DN -> slot holding the current entry, or null if it was deleted
+  private final Map<String, Integer> overlay = new HashMap<>();
+  private final List<Entry> slots = new ArrayList<>();
+  private final BitSet slotInFile = new BitSet();
+  private final List<LDIFChangeRecord> changes = new ArrayList<>();
+  private int records;
+
+  private LDIFDirectory(Path path, Schema schema) throws IOException {
+    this.path = path;
+    this.schema = schema;
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+  }
+
+  public static LDIFDirectory open(Path path) throws IOException, LDIFException {
+    Schema schema;
+    try (InputStream schemaStream = Objects.requireNonNull(LDIFDirectory.class.getResourceAsStream("schema.ldif"))) {
+      schema = Schema.getSchema(schemaStream);
+    }
+
+    var directory = new LDIFDirectory(path, schema);
+    try {
+      directory.scan((offset, raw, entry) -> {
+        directory.dnIndex.put(DirectoryAudit.hash(directory.normalize(entry.getDN())), offset);
+        directory.index(entry, null, offset);
+        directory.records++;
+      });
+    } catch (LDAPException e) {
+      directory.close();
+      throw new LDIFException("Unable to index " + path + ": " + e.getMessage(), -1, false, e);
+    } catch (IOException | RuntimeException e) {
+      directory.close();
+      throw e;
+    }
+    return directory;
+  }
+
+  public LDAPInterface ldap() {
+    return (LDAPInterface) Proxy.newProxyInstance(
+      LDAPInterface.class.getClassLoader(),
+      new Class<?>[]{LDAPInterface.class},
+      new Handler());
+  }
+
+  // number of entries in the file, changes not counted
+  public int getRecords() {
+    return records;
+  }
+
+  public synchronized int getChanges() {
+    return changes.size();
+  }
+
+  private final class Handler implements InvocationHandler {
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        try {
+          return method.invoke(this, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+
+      return switch (method.getName()) {
+        case "getRootDSE" -> null;
+        case "getSchema" -> schema;
+        case "getEntry" -> getEntry((String) args[0], args.length > 1 ? (String[]) args[1] : StaticUtils.NO_STRINGS);
+        case "search" -> search(searchRequest(args));
+        case "searchForEntry" -> searchForEntry(searchRequest(args));
+        case "add" -> add(addRequest(args));
+        case "modify" -> modify(modifyRequest(args));
+        case "delete" -> delete(args[0] instanceof ReadOnlyDeleteRequest request ? request.getDN() : (String) args[0]);
+        default -> throw new LDAPException(ResultCode.UNWILLING_TO_PERFORM, method.getName() + " is not supported on an LDIF file");
+      };
+    }
+  }
+
+  // the overloads of search and searchForEntry: a request, or [listener,] base, scope, [deref, size limit,
+  // time limit, types only,] filter, attributes
+  private static SearchRequest searchRequest(Object[] args) throws LDAPSearchException {
+    if (args[0] instanceof SearchRequest request) {
+      return request;
+    }
+    if (args[0] instanceof ReadOnlySearchRequest request) {
+      return request.duplicate();
+    }
+
+    try {
+      int i = 0;
+      SearchResultListener listener = null;
+      if (args[0] instanceof SearchResultListener searchResultListener) {
+        listener = searchResultListener;
+        i = 1;
+      }
+      String base = (String) args[i];
+      SearchScope scope = (SearchScope) args[i + 1];
+      i += 2;
+      DereferencePolicy derefPolicy = DereferencePolicy.NEVER;
+      int sizeLimit = 0;
+      int timeLimit = 0;
+      boolean typesOnly = false;
+      if (args[i] instanceof DereferencePolicy policy) {
+        derefPolicy = policy;
+        sizeLimit = (Integer) args[i + 1];
+        timeLimit = (Integer) args[i + 2];
+        typesOnly = (Boolean) args[i + 3];
+        i += 4;
+      }
+      Filter filter = args[i] instanceof Filter f ? f : Filter.create((String) args[i]);
+      return new SearchRequest(listener, base, scope, derefPolicy, sizeLimit, timeLimit, typesOnly, filter, (String[]) args[i + 1]);
+    } catch (LDAPException e) {
+      throw new LDAPSearchException(e);
+    }
+  }
+
+  private static AddRequest addRequest(Object[] args) throws LDAPException, LDIFException {
+    if (args[0] instanceof ReadOnlyAddRequest request) {
+      return request.duplicate();
+    }
+    if (args[0] instanceof Entry entry) {
+      return new AddRequest(entry);
+    }
+    if (args[0] instanceof String[] ldifLines) {
+      return new AddRequest(ldifLines);
+    }
+    if (args[1] instanceof Attribute[] attributes) {
+      return new AddRequest((String) args[0], attributes);
+    }
+    @SuppressWarnings("unchecked")
+    var attributes = (Collection<Attribute>) args[1];
+    return new AddRequest((String) args[0], attributes);
+  }
+
+  private static ModifyRequest modifyRequest(Object[] args) throws LDAPException, LDIFException {
+    if (args[0] instanceof ReadOnlyModifyRequest request) {
+      return request.duplicate();
+    }
+    if (args[0] instanceof String[] ldifLines) {
+      return new ModifyRequest(ldifLines);
+    }
+    if (args[1] instanceof Modification modification) {
+      return new ModifyRequest((String) args[0], modification);
+    }
+    if (args[1] instanceof Modification[] modifications) {
+      return new ModifyRequest((String) args[0], modifications);
+    }
+    @SuppressWarnings("unchecked")
+    var modifications = (List<Modification>) args[1];
+    return new ModifyRequest((String) args[0], modifications);
+  }
+
+  private synchronized SearchResultEntry getEntry(String dn, String[] attributes) throws LDAPException {
+    Entry entry = entry(normalize(dn));
+    return entry != null ? project(entry, attributes) : null;
+  }
+
+  private SearchResultEntry searchForEntry(SearchRequest request) throws LDAPSearchException {
+    SearchRequest single = request.duplicate();
+    single.setSizeLimit(1);
+    SearchResult result = search(single);
+    return result.getEntryCount() > 0 ? result.getSearchEntries().get(0) : null;
+  }
+
+  private synchronized SearchResult search(SearchRequest request) throws LDAPSearchException {
+    SearchResultListener listener = request.getSearchResultListener();
+    List<SearchResultEntry> entries = new ArrayList<>();
+    int[] count = {0};
+
+    try {
+      DN base = new DN(request.getBaseDN(), schema);
+      SearchScope scope = request.getScope();
+      Filter filter = request.getFilter();
+      RecordHandler match = (offset, raw, entry) -> {
+        if (entry == null || !inScope(entry.getParsedDN(), base, scope) || !filter.matchesEntry(entry, schema)) {
+          return;
+        }
+        if (request.getSizeLimit() > 0 && count[0] == request.getSizeLimit()) {
+          throw new LDAPSearchException(new SearchResult(-1, ResultCode.SIZE_LIMIT_EXCEEDED, "Size limit exceeded", null, null,
+            listener == null ? entries : null, listener == null ? List.of() : null, count[0], 0, null));
+        }
+        count[0]++;
+        SearchResultEntry result = project(entry, request.getAttributeList().toArray(new String[0]));
+        if (listener != null) {
+          listener.searchEntryReturned(result);
+        } else {
+          entries.add(result);
+        }
+      };
+
+      Entry baseEntry = base.isNullDN() ? null : entry(normalize(base.toString()));
+      if (!base.isNullDN() && baseEntry == null) {
+        throw new LDAPSearchException(ResultCode.NO_SUCH_OBJECT, "Entry " + request.getBaseDN() + " does not exist");
+      }
+
+      Set<Long> candidates = scope == SearchScope.BASE ? null : candidates(filter);
+      if (scope == SearchScope.BASE) {
+        match.record(-1, null, baseEntry);
+      } else if (candidates != null) {
+        for (long id : candidates) {
+          match.record(id, null, resolve(id));
+        }
+      } else {
+        scan((offset, raw, entry) -> {
+          if (!overlay.containsKey(normalize(entry.getDN()))) {
+            match.record(offset, raw, entry);
+          }
+        });
+        for (Entry entry : slots) {
+          match.record(-1, null, entry);
+        }
+      }
+    } catch (LDAPSearchException e) {
+      throw e;
+    } catch (LDAPException e) {
+      throw new LDAPSearchException(e);
+    } catch (IOException e) {
+      throw new LDAPSearchException(ResultCode.LOCAL_ERROR, "Unable to read " + path, e);
+    }
+
+    return new SearchResult(-1, ResultCode.SUCCESS, null, null, null,
+      listener == null ? entries : null, listener == null ? List.of() : null, count[0], 0, null);
+  }
+
+  private static boolean inScope(DN dn, DN base, SearchScope scope) {
+    return switch (scope.intValue()) {
+      case SearchScope.BASE_INT_VALUE -> dn.equals(base);
+      case SearchScope.ONE_INT_VALUE -> base.equals(dn.getParent());
+      case SearchScope.SUBORDINATE_SUBTREE_INT_VALUE -> dn.isDescendantOf(base, false);
+      default -> dn.isDescendantOf(base, true);
+    };
+  }
+
+  // the requested attributes like a server returns them: all user attributes by default, operational ones only
+  // with + or by name
+  private SearchResultEntry project(Entry entry, String[] attributes) {
+    boolean allUser = attributes.length == 0;
+    boolean allOperational = false;
+    Set<String> names = new HashSet<>();
+    for (String attribute : attributes) {
+      switch (attribute) {
+        case "*" -> allUser = true;
+        case "+" -> allOperational = true;
+        default -> names.add(StaticUtils.toLowerCase(Attribute.getBaseName(attribute)));
+      }
+    }
+
+    List<Attribute> kept = new ArrayList<>();
+    for (Attribute attribute : entry.getAttributes()) {
+      AttributeTypeDefinition type = schema.getAttributeType(attribute.getBaseName());
+      boolean operational = type != null && type.isOperational();
+      if (names.contains(StaticUtils.toLowerCase(attribute.getBaseName())) || (operational ? allOperational : allUser)) {
+        kept.add(attribute);
+      }
+    }
+    return new SearchResultEntry(new Entry(entry.getDN(), schema, kept));
+  }
+
+  private synchronized LDAPResult add(AddRequest request) throws LDAPException {
+    Entry entry = new Entry(request.getDN(), schema, request.getAttributes());
+    String dn = normalize(entry.getDN());
+    if (entry(dn) != null) {
+      throw new LDAPException(ResultCode.ENTRY_ALREADY_EXISTS, "Entry " + entry.getDN() + " already exists");
+    }
+    DN parent = entry.getParsedDN().getParent();
+    if (parent != null && entry(normalize(parent.toString())) == null) {
+      throw new LDAPException(ResultCode.NO_SUCH_OBJECT, "Parent of " + entry.getDN() + " does not exist");
+    }
+
+    put(dn, entry, false);
+    changes.add(new LDIFAddChangeRecord(request));
+    return new LDAPResult(-1, ResultCode.SUCCESS);
+  }
+
+  private synchronized LDAPResult modify(ModifyRequest request) throws LDAPException {
+    String dn = normalize(request.getDN());
+    Entry entry = entry(dn);
+    if (entry == null) {
+      throw new LDAPException(ResultCode.NO_SUCH_OBJECT, "Entry " + request.getDN() + " does not exist");
+    }
+
+    // without the permissive control, adding existing and deleting missing values fails like on the server
+    boolean lenient = request.hasControl(PermissiveModifyRequestControl.PERMISSIVE_MODIFY_REQUEST_OID);
+    Entry modified = Entry.applyModifications(entry, lenient, request.getModifications());
+    // incremental export-ssh-keys relies on it
+    if (entry.hasAttribute("modifyTimestamp")) {
+      modified.setAttribute("modifyTimestamp", StaticUtils.encodeGeneralizedTime(new Date()));
+    }
+
+    put(dn, modified, !overlay.containsKey(dn));
+    changes.add(new LDIFModifyChangeRecord(request));
+    return new LDAPResult(-1, ResultCode.SUCCESS);
+  }
+
+  private synchronized LDAPResult delete(String dnString) throws LDAPException {
+    String dn = normalize(dnString);
+    if (entry(dn) == null) {
+      throw new LDAPException(ResultCode.NO_SUCH_OBJECT, "Entry " + dnString + " does not exist");
+    }
+
+    put(dn, null, !overlay.containsKey(dn));
+    changes.add(new LDIFDeleteChangeRecord(dnString));
+    return new LDAPResult(-1, ResultCode.SUCCESS);
+  }
+
+  private void put(String dn, Entry entry, boolean inFile) {
+    Integer slot = overlay.get(dn);
+    Entry previous = null;
+    if (slot == null) {
+      slot = slots.size();
+      slots.add(entry);
+      overlay.put(dn, slot);
+      if (inFile) {
+        slotInFile.set(slot);
+      }
+    } else {
+      previous = slots.set(slot, entry);
+    }
+
+    if (entry != null) {
+      index(entry, previous, -(slot + 1L));
+    }
+  }
+
+  // the current entry, null if it does not exist (anymore)
+  private Entry entry(String dn) throws LDAPException {
+    Integer slot = overlay.get(dn);
+    if (slot != null) {
+      return slots.get(slot);
+    }
+
+    Entry[] found = {null};
+    LDAPException[] error = {null};
+    dnIndex.forEach(DirectoryAudit.hash(dn), offset -> {
+      try {
+        Entry entry = read(offset);
+        if (found[0] == null && normalize(entry.getDN()).equals(dn)) {
+          found[0] = entry;
+        }
+      } catch (LDAPException e) {
+        error[0] = e;
+      }
+    });
+    if (error[0] != null) {
+      throw error[0];
+    }
+    return found[0];
+  }
+
+  // null if the id is stale: a record that was changed since or a deleted slot
+  private Entry resolve(long id) throws LDAPException {
+    if (id < 0) {
+      return slots.get((int) (-id - 1));
+    }
+    Entry entry = read(id);
+    return overlay.containsKey(normalize(entry.getDN())) ? null : entry;
+  }
+
+  // values the previous version of the entry had are indexed under its id already
+  private void index(Entry entry, Entry previous, long id) {
+    for (Attribute attribute : entry.getAttributes()) {
+      String name = StaticUtils.toLowerCase(attribute.getBaseName());
+      if (!INDEXED.contains(name)) {
+        continue;
+      }
+      for (String value : attribute.getValues()) {
+        Long key = valueKey(name, value);
+        if (key != null && (previous == null || !previous.hasAttributeValue(attribute.getName(), value))) {
+          valueIndex.put(key, id);
+        }
+      }
+    }
+  }
+
+  private static Long valueKey(String name, String value) {
+    String normalized;
+    if (NUMERIC.contains(name)) {
+      try {
+        normalized = String.valueOf(Integer.parseInt(value.trim()));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    } else {
+      normalized = StaticUtils.toLowerCase(value.trim());
+    }
+    return DirectoryAudit.hash(name + "=" + normalized);
+  }
+
+  // ids of all entries that may match the filter, null if the index can't narrow it down
+  private Set<Long> candidates(Filter filter) {
+    switch (filter.getFilterType()) {
+      case Filter.FILTER_TYPE_EQUALITY -> {
+        String name = StaticUtils.toLowerCase(Attribute.getBaseName(filter.getAttributeName()));
+        if (!INDEXED.contains(name)) {
+          return null;
+        }
+        Set<Long> ids = new HashSet<>();
+        Long key = valueKey(name, filter.getAssertionValue());
+        if (key != null) {
+          valueIndex.forEach(key, ids::add);
+        }
+        return ids;
+      }
+      case Filter.FILTER_TYPE_OR -> {
+        Set<Long> ids = new HashSet<>();
+        for (Filter component : filter.getComponents()) {
+          Set<Long> componentIds = candidates(component);
+          if (componentIds == null) {
+            return null;
+          }
+          ids.addAll(componentIds);
+        }
+        return ids;
+      }
+      case Filter.FILTER_TYPE_AND -> {
+        Set<Long> smallest = range(filter.getComponents());
+        for (Filter component : filter.getComponents()) {
+          Set<Long> componentIds = candidates(component);
+          if (componentIds != null && (smallest == null || componentIds.size() < smallest.size())) {
+            smallest = componentIds;
+          }
+        }
+        return smallest;
+      }
+      default -> {
+        return null;
+      }
+    }
+  }
+
+  // a >= and a <= on the same number attribute spanning at most MAX_INDEXED_RANGE numbers
+  private Set<Long> range(Filter[] components) {
+    for (Filter lower : components) {
+      if (lower.getFilterType() != Filter.FILTER_TYPE_GREATER_OR_EQUAL) {
+        continue;
+      }
+      String name = StaticUtils.toLowerCase(Attribute.getBaseName(lower.getAttributeName()));
+      for (Filter upper : components) {
+        if (upper.getFilterType() != Filter.FILTER_TYPE_LESS_OR_EQUAL || !NUMERIC.contains(name)
+          || !name.equals(StaticUtils.toLowerCase(Attribute.getBaseName(upper.getAttributeName())))) {
+          continue;
+        }
+        try {
+          long start = Integer.parseInt(lower.getAssertionValue());
+          long end = Integer.parseInt(upper.getAssertionValue());
+          if (end - start >= MAX_INDEXED_RANGE) {
+            continue;
+          }
+          Set<Long> ids = new HashSet<>();
+          for (long number = start; number <= end; number++) {
+            valueIndex.forEach(valueKey(name, String.valueOf(number)), ids::add);
+          }
+          return ids;
+        } catch (NumberFormatException ignored) {
+        }
+      }
+    }
+    return null;
+  }
+
+  private String normalize(String dn) throws LDAPException {
+    return DN.normalize(dn, schema);
+  }
+
+  // the whole file in one pass; raw is the record as it is in the file, including comments
+  private void scan(RecordHandler handler) throws IOException, LDAPException {
+    try (var in = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+      var raw = new ByteArrayOutputStream();
+      var line = new ByteArrayOutputStream();
+      List<String> lines = new ArrayList<>();
+      long position = 0;
+      long recordStart = -1;
+      boolean comment = false;
+
+      while (true) {
+        long lineStart = position;
+        line.reset();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+          line.write(b);
+          position++;
+        }
+        boolean eof = b == -1;
+        if (!eof) {
+          position++;
+        }
+
+        String text = line.toString(StandardCharsets.UTF_8);
+        if (text.endsWith("\r")) {
+          text = text.substring(0, text.length() - 1);
+        }
+        if (text.isEmpty()) {
+          if (!lines.isEmpty()) {
+            handler.record(recordStart, raw.toByteArray(), decode(lines));
+          }
+          recordStart = -1;
+          raw.reset();
+          lines.clear();
+          comment = false;
+          if (eof) {
+            return;
+          }
+          continue;
+        }
+
+        if (recordStart < 0) {
+          if (text.startsWith("version:")) {
+            continue;
+          }
+          recordStart = lineStart;
+        }
+        line.writeTo(raw);
+        raw.write('\n');
+        comment = addLine(lines, text, comment);
+      }
+    }
+  }
+
+  private synchronized Entry read(long offset) throws LDAPException {
+    try {
+      channel.position(offset);
+      // not closed, that would close the channel
+      var in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8), 4096);
+      List<String> lines = new ArrayList<>();
+      boolean comment = false;
+      String text;
+      while ((text = in.readLine()) != null && !text.isEmpty()) {
+        comment = addLine(lines, text, comment);
+      }
+      return decode(lines);
+    } catch (IOException e) {
+      throw new LDAPException(ResultCode.LOCAL_ERROR, "Unable to read " + path, e);
+    }
+  }
+
+  // unfolds continuation lines and drops comments, returns whether the line was (part of) a comment
+  private static boolean addLine(List<String> lines, String text, boolean comment) {
+    if (text.startsWith("#")) {
+      return true;
+    }
+    if (text.startsWith(" ")) {
+      if (!comment && !lines.isEmpty()) {
+        lines.set(lines.size() - 1, lines.getLast() + text.substring(1));
+      }
+      return comment;
+    }
+    lines.add(text);
+    return false;
+  }
+
+  private Entry decode(List<String> lines) throws LDAPException {
+    try {
+      Entry entry = LDIFReader.decodeEntry(lines.toArray(new String[0]));
+      return new Entry(entry.getDN(), schema, entry.getAttributes());
+    } catch (LDIFException e) {
+      throw new LDAPException(ResultCode.DECODING_ERROR, "Invalid record in " + path + ": " + e.getMessage(), e);
+    }
+  }
+
+  // the file with all changes applied, for slapadd; unchanged records are copied as they are and added entries
+  // follow in the order they were added, so parents still come before their children
+  public synchronized void writeLDIF(Path output) throws IOException, LDAPException {
+    writeAtomically(output, out -> {
+      scan((offset, raw, entry) -> {
+        Integer slot = overlay.get(normalize(entry.getDN()));
+        if (slot == null) {
+          out.write(raw);
+          out.write('\n');
+        } else if (slots.get(slot) != null) {
+          write(out, slots.get(slot));
+        }
+      });
+      for (int slot = 0; slot < slots.size(); slot++) {
+        if (!slotInFile.get(slot) && slots.get(slot) != null) {
+          write(out, slots.get(slot));
+        }
+      }
+    });
+  }
+
+  private static void write(OutputStream out, Entry entry) throws IOException {
+    for (String line : entry.toLDIF(76)) {
+      out.write(line.getBytes(StandardCharsets.UTF_8));
+      out.write('\n');
+    }
+    out.write('\n');
+  }
+
+  // the operations as LDIF change records in the order they were applied, for ldapmodify
+  public synchronized void writeChanges(Path output) throws IOException, LDAPException {
+    writeAtomically(output, out -> {
+      var writer = new LDIFWriter(out);
+      for (LDIFChangeRecord change : changes) {
+        writer.writeChangeRecord(change);
+      }
+      writer.flush();
+    });
+  }
+
+  private interface OutputHandler {
+    void write(OutputStream out) throws IOException, LDAPException;
+  }
+
+  // writes to a temporary file next to output that replaces it only when complete, so a failed write leaves the old
+  // file alone. Writing to the opened LDIF itself is refused, records are read from it again while writing.
+  private void writeAtomically(Path output, OutputHandler handler) throws IOException, LDAPException {
+    if (Files.exists(output) && Files.isSameFile(output, path)) {
+      throw new IOException(output + " is the LDIF being read");
+    }
+    Path parent = output.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(parent, output.getFileName().toString(), ".tmp");
+    try {
+      try (var out = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16)) {
+        handler.write(out);
+      }
+      Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  // open addressing multimap of longs, a key may be put several times; key 0 is stored as 1
+  static final class LongMultimap {
+    private long[] keys = new long[1024];
+    private long[] values = new long[1024];
+    private int size;
+
+    void put(long key, long value) {
+      if (2 * (size + 1) > keys.length) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+          if (oldKeys[i] != 0) {
+            insert(oldKeys[i], oldValues[i]);
+          }
+        }
+      }
+      insert(key == 0 ? 1 : key, value);
+      size++;
+    }
+
+    private void insert(long key, long value) {
+      int mask = keys.length - 1;
+      int slot = (int) key & mask;
+      while (keys[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      values[slot] = value;
+    }
+
+    void forEach(long key, LongConsumer consumer) {
+      key = key == 0 ? 1 : key;
+      int mask = keys.length - 1;
+      for (int slot = (int) key & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          consumer.accept(values[slot]);
+        }
+      }
+    }
+  }
+}
@@ -1,14 +1,20 @@
 package de.nnev.mgmt;
 
+import com.sun.net.httpserver.HttpServer;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
 import com.unboundid.ldap.sdk.LDAPSearchException;
 import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldif.LDIFException;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.ExitCode;
 import picocli.CommandLine.Help;
 import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Model.OptionSpec;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.ParameterException;
 import picocli.CommandLine.Parameters;
@@ -17,17 +23,75 @@ import picocli.CommandLine.RunLast;
 import picocli.CommandLine.ScopeType;
 import picocli.CommandLine.Spec;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 @Command(name = "ldap-user-mgmt", synopsisSubcommandLabel = "COMMAND")
 public class Manager implements Runnable {
 
+  private static final int NO_POOL = 0;
+
+  // options that shape the connection, the entry cache, the number allocation or the statistics of the process;
+  // the server was started with its own, so clients of it can't choose them
+  private static final Set<String> SERVER_OPTIONS = Set.of(
+    "--test", "--id-block-size", "--id-strategy", "--id-range", "--replica", "--read-after-write",
+    "--offline", "--offline-output", "--offline-changes", "--entry-cache-size", "--entry-cache-ttl", "--stats");
+
+  enum IdStrategy {
+    counter,
+    gaps
+  }
+
   @Option(names = {"-t", "--test"}, description = "Enable use of local test ldap server", scope = ScopeType.INHERIT)
   boolean debugMode = false;
 
+  @Option(names = "--id-block-size", description = "Reserve uid/gid numbers in blocks of this size, unused numbers are given back on exit", scope = ScopeType.INHERIT)
+  int idBlockSize = 1;
+
+  @Option(names = "--id-strategy", description = "How uid/gid numbers are chosen: counter (default) or gaps (lowest free number in --id-range, user groups get the uid of their user). Gaps are not reserved: don't use gaps while another process reserves numbers in blocks (--id-block-size, import-users)", scope = ScopeType.INHERIT)
+  IdStrategy idStrategy = IdStrategy.counter;
+
+  @Option(names = "--id-range", split = "-", paramLabel = "FIRST-LAST", description = "Numbers handed out by --id-strategy gaps (default: 1000-59999)", scope = ScopeType.INHERIT)
+  int[] idRange = {GapIdAllocator.DEFAULT_FIRST, GapIdAllocator.DEFAULT_LAST};
+
+  @Option(names = "--replica", paramLabel = "URL", description = "Send searches to this read replica (ldapi://<url-encoded socket path> or ldap://host:port), may be repeated", scope = ScopeType.INHERIT)
+  List<String> replicas = new ArrayList<>();
+
+  @Option(names = "--read-after-write", description = "Milliseconds after a write during which searches go to the primary instead of the replicas (default: ${DEFAULT-VALUE})", scope = ScopeType.INHERIT)
+  long readAfterWriteMillis = 2000;
+
+  @Option(names = "--offline", paramLabel = "LDIF", description = "Apply the changes to an LDIF export (slapcat) instead of the server, needs --offline-output or --offline-changes", scope = ScopeType.INHERIT)
+  Path offlineLdif;
+
+  @Option(names = "--offline-output", paramLabel = "LDIF", description = "Write the --offline LDIF with all changes applied to this file (for slapadd)", scope = ScopeType.INHERIT)
+  Path offlineOutput;
+
+  @Option(names = "--offline-changes", paramLabel = "LDIF", description = "Write only the changes made to the --offline LDIF to this file (for ldapmodify)", scope = ScopeType.INHERIT)
+  Path offlineChanges;
+
+  @Option(names = "--entry-cache-size", description = "Cache up to this many user and group entries, 0 disables the cache", scope = ScopeType.INHERIT)
+  int entryCacheSize = 0;
+
+  @Option(names = "--entry-cache-ttl", description = "Seconds a cached entry stays valid (default: ${DEFAULT-VALUE})", scope = ScopeType.INHERIT)
+  long entryCacheTtl = 60;
+
+  @Option(names = "--stats", description = "Print the number and latency of LDAP operations on exit", scope = ScopeType.INHERIT)
+  boolean printStats = false;
+
   @SuppressWarnings("unused")
   @Option(names = {"-h", "--help"}, usageHelp = true, description = "Show this help message and exit.", scope = ScopeType.INHERIT)
   boolean usageHelpRequested;
@@ -37,23 +101,135 @@ public class Manager implements Runnable {
 
   ManagerLDAP u;
 
+  // only set if statistics were asked for, otherwise the connection is not instrumented
+  private LDAPStats stats;
+
+  private ReplicaRouter router;
+
+  private LDIFDirectory offline;
+
   TestInMemLdap testInMemLdap;
 
+  // set when commands are executed on behalf of a client of the command server
+  private final boolean embedded;
+  // the client's, relative paths are resolved against it; null for the working directory of the process
+  private final Path workingDirectory;
+
+  public Manager() {
+    this.embedded = false;
+    this.workingDirectory = null;
+  }
+
+  Manager(ManagerLDAP u) {
+    this(u, null);
+  }
+
+  Manager(ManagerLDAP u, Path workingDirectory) {
+    this.u = u;
+    this.embedded = true;
+    this.workingDirectory = workingDirectory;
+  }
+
+  CommandLine commandLine() {
+    return new CommandLine(this)
+      .setExecutionStrategy(this::executionStrategy)
+      .registerConverter(Path.class, this::resolve);
+  }
+
+  private Path resolve(String path) {
+    return workingDirectory != null ? workingDirectory.resolve(path) : Path.of(path);
+  }
+
   private int executionStrategy(ParseResult parseResult) {
-    init(); // custom initialization to be done before executing any command or subcommand
+    String command = parseResult.subcommand() != null ? parseResult.subcommand().commandSpec().name() : null;
+    boolean serve = "serve".equals(command);
+    if (embedded) {
+      if (serve) {
+        throw new ParameterException(spec.commandLine(), "Already running as server");
+      }
+      // inherited options may follow the subcommand
+      for (ParseResult result = parseResult; result != null; result = result.subcommand()) {
+        for (OptionSpec option : result.matchedOptions()) {
+          if (SERVER_OPTIONS.contains(option.longestName())) {
+            throw new ParameterException(spec.commandLine(), option.longestName() + " is not available through the server, pass it to serve instead");
+          }
+        }
+      }
+      return new RunLast().execute(parseResult);
+    }
+
+    // serve opens its own pool, authorized-keys must work without the LDAP server
+    if (!serve && !"authorized-keys".equals(command)) {
+      init(NO_POOL); // custom initialization to be done before executing any command or subcommand
+    }
     int retCode = new RunLast().execute(parseResult); // default execution strategy
-    shutdown();
+    if (!shutdown() && retCode == ExitCode.OK) {
+      retCode = ExitCode.SOFTWARE;
+    }
     return retCode;
   }
 
-  private void init() {
+  private void init(int poolSize) {
     try {
-      if (debugMode) {
+      LDAPInterface ldap;
+      if (offlineLdif != null) {
+        if (offlineOutput == null && offlineChanges == null) {
+          throw new ParameterException(spec.commandLine(), "--offline needs --offline-output or --offline-changes");
+        }
+        if (!replicas.isEmpty()) {
+          throw new ParameterException(spec.commandLine(), "--offline can't be combined with --replica");
+        }
+        // the input is read again while the output is written
+        if (isSameFile(offlineLdif, offlineOutput) || isSameFile(offlineLdif, offlineChanges) || isSameFile(offlineOutput, offlineChanges)) {
+          throw new ParameterException(spec.commandLine(), "--offline, --offline-output and --offline-changes must be different files");
+        }
+        offline = LDIFDirectory.open(offlineLdif);
+        ldap = offline.ldap();
+      } else if (debugMode) {
         testInMemLdap = new TestInMemLdap();
         testInMemLdap.startLdap();
-        u = new ManagerLDAP(testInMemLdap.getConnection());
+        ldap = poolSize != NO_POOL ? testInMemLdap.srv.getConnectionPool(poolSize) : testInMemLdap.getConnection();
       } else {
-        u = new ManagerLDAP(ManagerLDAP.getLDAPiConnection());
+        ldap = poolSize != NO_POOL ? ManagerLDAP.getLDAPiConnectionPool(poolSize) : ManagerLDAP.getLDAPiConnection();
+      }
+      if (!replicas.isEmpty()) {
+        List<LDAPInterface> replicaPools = new ArrayList<>(replicas.size());
+        for (String url : replicas) {
+          replicaPools.add(ManagerLDAP.getConnectionPool(url, Math.max(1, poolSize)));
+        }
+        router = new ReplicaRouter(ldap, replicaPools, Duration.ofMillis(readAfterWriteMillis));
+        router.startHealthChecks(ReplicaRouter.DEFAULT_HEALTH_CHECK_INTERVAL);
+        ldap = router.ldap();
+      }
+      if (printStats && stats == null) {
+        stats = new LDAPStats();
+      }
+      u = new ManagerLDAP(stats != null ? stats.instrument(ldap) : ldap);
+      if (idStrategy == IdStrategy.gaps) {
+        if (idRange.length != 2) {
+          throw new ParameterException(spec.commandLine(), "--id-range must be FIRST-LAST");
+        }
+        // reserved but not yet written numbers below the counter look like gaps
+        if (idBlockSize > 1) {
+          throw new ParameterException(spec.commandLine(), "--id-strategy gaps can't be combined with --id-block-size");
+        }
+        var uids = new GapIdAllocator(u, ManagerLDAP.UID_DN, "uidNumber", idRange[0], idRange[1]);
+        var gids = new GapIdAllocator(u, ManagerLDAP.GID_DN, "gidNumber", idRange[0], idRange[1]);
+        u.setIdAllocators(uids, gids);
+        // only worth dedicated connections if we keep running
+        if (poolSize != NO_POOL && !debugMode && offline == null && !(watch(uids) & watch(gids))) {
+          err().println(Help.Ansi.AUTO.string("@|bold,yellow Server does not support syncrepl, freed uid/gid numbers are only noticed every 10 minutes|@"));
+        }
+      } else if (idBlockSize > 1) {
+        u.useBlockAllocation(idBlockSize);
+      }
+      if (entryCacheSize > 0) {
+        var cache = new EntryCache(entryCacheSize, Duration.ofSeconds(entryCacheTtl));
+        // only worth a dedicated connection if we keep running
+        if (poolSize != NO_POOL && !debugMode && offline == null && !cache.watch(ManagerLDAP::getLDAPiConnection, ManagerLDAP.LDAP_BASE)) {
+          err().println(Help.Ansi.AUTO.string("@|bold,yellow Server does not support syncrepl, cached entries may be stale for up to " + entryCacheTtl + "s|@"));
+        }
+        u.setEntryCache(cache);
       }
     } catch (IOException | LDIFException e) {
       throw new RuntimeException("Unknown error occurred", e);
@@ -65,7 +241,65 @@ public class Manager implements Runnable {
     }
   }
 
-  private void shutdown() {
+  private static boolean watch(GapIdAllocator allocator) throws LDAPException {
+    LDAPConnection conn = ManagerLDAP.getLDAPiConnection();
+    if (allocator.watch(conn)) {
+      return true;
+    }
+    conn.close();
+    return false;
+  }
+
+  private static boolean isSameFile(Path a, Path b) throws IOException {
+    if (a == null || b == null) {
+      return false;
+    }
+    return a.toAbsolutePath().normalize().equals(b.toAbsolutePath().normalize()) || Files.exists(a) && Files.exists(b) && Files.isSameFile(a, b);
+  }
+
+  // false if the offline changes could not be written
+  private synchronized boolean shutdown() {
+    boolean written = true;
+    if (u != null) {
+      if (printStats && stats != null) {
+        stats.printSummary(err());
+      }
+      if (printStats && router != null) {
+        err().println("Reads: " + router.getReplicaReads() + " from replicas, " + router.getPrimaryReads() + " from the primary, "
+          + router.getFailovers() + " failed over, " + router.getHealthyReplicas() + " replicas healthy");
+      }
+      try {
+        u.releaseIdNumbers();
+      } catch (LDAPException e) {
+        err().println(Help.Ansi.AUTO.string("@|bold,yellow Unable to give back unused uid/gid numbers: " + e.getMessage() + "|@"));
+      }
+      if (u.getEntryCache() != null) {
+        u.getEntryCache().close();
+      }
+      u = null;
+    }
+
+    if (offline != null) {
+      try (var directory = offline) {
+        if (offlineOutput != null) {
+          directory.writeLDIF(offlineOutput);
+        }
+        if (offlineChanges != null) {
+          directory.writeChanges(offlineChanges);
+        }
+        err().println(Help.Ansi.AUTO.string("@|bold,green " + directory.getChanges() + " changes to " + offlineLdif + " written|@"));
+      } catch (IOException | LDAPException e) {
+        err().println(Help.Ansi.AUTO.string("@|bold,red Unable to write the offline changes: " + e.getMessage() + "|@"));
+        written = false;
+      }
+      offline = null;
+    }
+
+    if (router != null) {
+      router.close();
+      router = null;
+    }
+
     if (testInMemLdap != null) {
       try {
         testInMemLdap.srv.exportToLDIF("/tmp/ldapDump.ldif", true, true);
@@ -73,12 +307,21 @@ public class Manager implements Runnable {
       }
 
       testInMemLdap.shutdownLdap();
+      testInMemLdap = null;
     }
+    return written;
+  }
+
+  private PrintWriter out() {
+    return spec.commandLine().getOut();
+  }
+
+  private PrintWriter err() {
+    return spec.commandLine().getErr();
   }
 
   public static void main(String... args) {
-    var app = new Manager();
-    int exitCode = new CommandLine(app).setExecutionStrategy(app::executionStrategy).execute(args);
+    int exitCode = new Manager().commandLine().execute(args);
     System.exit(exitCode);
   }
 
@@ -88,11 +331,74 @@ public class Manager implements Runnable {
   }
 
   @Command(name = "add-noname-user")
-  int addNonameUser(@Parameters(paramLabel = "username") String username, @Parameters(paramLabel = "realname") String realname) throws LDAPException {
-    u.addUserWithUserGroup(username, realname, "/usr/bin/bash");
-    u.addUserToGroup(username, "noname");
+  int addNonameUser(
+    @Option(names = "--atomic", description = "Create the user, its user group and the membership all at once or not at all") boolean atomic,
+    @Parameters(paramLabel = "username") String username, @Parameters(paramLabel = "realname") String realname) throws LDAPException {
+    if (atomic) {
+      u.addUserWithUserGroupAtomically(username, realname, "/usr/bin/bash", List.of("noname"));
+    } else {
+      u.addUserWithUserGroup(username, realname, "/usr/bin/bash");
+      u.addUserToGroup(username, "noname");
+    }
+
+    out().println(Help.Ansi.AUTO.string("@|bold,green User " + username + " successfully created with user group and added to the noname group!|@"));
+
+    return ExitCode.OK;
+  }
+
+  @Command(name = "import-users", description = "Create users with user groups from a CSV (username,realname[,shell]) or LDIF file")
+  int importUsers(
+    @Option(names = {"-g", "--group"}, paramLabel = "group", defaultValue = "noname", description = "Group to add every imported user to (default: ${DEFAULT-VALUE})") List<String> groups,
+    @Option(names = "--shell", defaultValue = "/usr/bin/bash", description = "Login shell for rows without one (default: ${DEFAULT-VALUE})") String shell,
+    @Option(names = "--format", description = "Input format: ${COMPLETION-CANDIDATES} (default: by file extension)") UserImporter.Format format,
+    @Option(names = "--batch-size", defaultValue = "500", description = "Number of rows checked and written together (default: ${DEFAULT-VALUE})") int batchSize,
+    @Parameters(paramLabel = "path-to-file") Path path) throws IOException, LDAPException {
+    // the importer reserves its numbers from the counter, concurrent commands filling gaps could hand them out again
+    if (idStrategy == IdStrategy.gaps) {
+      throw new ParameterException(spec.commandLine(), "import-users can't be combined with --id-strategy gaps");
+    }
+    var importer = new UserImporter(u, groups, shell, batchSize, (row, reason) ->
+      err().println(Help.Ansi.AUTO.string("@|bold,red #" + row.position() + " " + (row.uid() != null ? row.uid() : "") + ": " + reason + "|@")));
+    importer.importFile(path, format != null ? format : UserImporter.detectFormat(path));
 
-    System.out.println(Help.Ansi.AUTO.string("@|bold,green User " + username + " successfully created with user group and added to the noname group!|@"));
+    if (importer.getFailed() == 0 && importer.getIncompleteMemberships() == 0) {
+      out().println(Help.Ansi.AUTO.string("@|bold,green " + importer.getImported() + " users successfully imported!|@"));
+      return ExitCode.OK;
+    }
+    out().println(Help.Ansi.AUTO.string("@|bold,yellow " + importer.getImported() + " users imported (" + importer.getIncompleteMemberships()
+      + " of them not added to every group), " + importer.getFailed() + " failed!|@"));
+    return ExitCode.SOFTWARE;
+  }
+
+  @Command(name = "list-users", description = "Print users as they are returned by a paged search")
+  int listUsers(
+    @Option(names = {"-a", "--attributes"}, split = ",", defaultValue = "uid,uidNumber,gidNumber,cn", description = "Attributes to print (default: ${DEFAULT-VALUE})") List<String> attributes,
+    @Option(names = "--format", defaultValue = "text", description = "Output format: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})") EntryPrinter.Format format,
+    @Option(names = "--member-of", paramLabel = "group", description = "Only users that are members of the group") String group,
+    @Option(names = "--without-keys", description = "Only users without SSH keys") boolean withoutKeys,
+    @Option(names = "--page-size", defaultValue = "500", description = "Number of entries fetched at once (default: ${DEFAULT-VALUE})") int pageSize) throws LDAPException {
+    var printer = new EntryPrinter(out(), format, attributes);
+    Filter filter = withoutKeys ? Filter.createNOTFilter(Filter.createPresenceFilter("sshPublicKey")) : null;
+    if (group == null) {
+      u.forEachUser(pageSize, filter, printer, attributes.toArray(new String[0]));
+    } else {
+      u.forEachMember(group, pageSize, filter, printer, attributes.toArray(new String[0]));
+    }
+    out().flush();
+
+    return ExitCode.OK;
+  }
+
+  @Command(name = "list-groups", description = "Print groups as they are returned by a paged search")
+  int listGroups(
+    @Option(names = {"-a", "--attributes"}, split = ",", defaultValue = "cn,gidNumber", description = "Attributes to print (default: ${DEFAULT-VALUE})") List<String> attributes,
+    @Option(names = "--format", defaultValue = "text", description = "Output format: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})") EntryPrinter.Format format,
+    @Option(names = "--with-member", paramLabel = "username", description = "Only groups the user is a member of") String username,
+    @Option(names = "--page-size", defaultValue = "500", description = "Number of entries fetched at once (default: ${DEFAULT-VALUE})") int pageSize) throws LDAPException {
+    var printer = new EntryPrinter(out(), format, attributes);
+    Filter filter = username == null ? null : Filter.createEqualityFilter("member", u.getUserEntry(username, SearchRequest.NO_ATTRIBUTES).getDN());
+    u.forEachGroup(pageSize, filter, printer, attributes.toArray(new String[0]));
+    out().flush();
 
     return ExitCode.OK;
   }
@@ -101,7 +407,7 @@ public class Manager implements Runnable {
   int addGroup(@Parameters(paramLabel = "group") String group) throws LDAPException {
     u.addGroup(group, ManagerLDAP.GroupType.RegularGroup);
 
-    System.out.println(Help.Ansi.AUTO.string("@|bold,green Group " + group + " successfully created!|@"));
+    out().println(Help.Ansi.AUTO.string("@|bold,green Group " + group + " successfully created!|@"));
 
     return ExitCode.OK;
   }
@@ -110,7 +416,7 @@ public class Manager implements Runnable {
   int addUserToGroup(@Parameters(paramLabel = "username") String username, @Parameters(paramLabel = "group") String group) throws LDAPException {
     u.addUserToGroup(username, group);
 
-    System.out.println(Help.Ansi.AUTO.string("@|bold,green User " + username + " added to the " + group + " group!|@"));
+    out().println(Help.Ansi.AUTO.string("@|bold,green User " + username + " added to the " + group + " group!|@"));
 
     return ExitCode.OK;
   }
@@ -119,21 +425,78 @@ public class Manager implements Runnable {
   int removeUserFromGroup(@Parameters(paramLabel = "username") String username, @Parameters(paramLabel = "group") String group) throws LDAPException {
     u.removeUserFromGroup(username, group);
 
-    System.out.println(Help.Ansi.AUTO.string("@|bold,green User " + username + " successfully removed from the " + group + " group!|@"));
+    out().println(Help.Ansi.AUTO.string("@|bold,green User " + username + " successfully removed from the " + group + " group!|@"));
 
     return ExitCode.OK;
   }
 
+  @Command(name = "sync-group-members", description = {
+    "Make the members of groups match lists of user names (one per line, - reads stdin)",
+    "The current members and the listed user names of a group are held in memory"})
+  int syncGroupMembers(
+    @Option(names = "--dry-run", description = "Only print the members that would be added and removed") boolean dryRun,
+    @Option(names = "--batch-size", defaultValue = "1000", description = "Number of user names resolved and members changed at once (default: ${DEFAULT-VALUE})") int batchSize,
+    @Option(names = "--max-remove-percent", defaultValue = "" + GroupMemberSync.DEFAULT_MAX_REMOVE_PERCENT, description = "Remove nobody if more than this share of the members (and more than 10) would be removed, which is what an empty or truncated list looks like (default: ${DEFAULT-VALUE})") int maxRemovePercent,
+    @Option(names = "--force", description = "Remove members even beyond --max-remove-percent") boolean force,
+    @Parameters(paramLabel = "group=path-to-list", arity = "1..*") Map<String, String> lists) throws IOException, LDAPException {
+    // the server does not forward the client's stdin
+    if (embedded && lists.containsValue("-")) {
+      throw new ParameterException(spec.commandLine(), "Reading a list from stdin (-) is not available through the server, pass a file");
+    }
+
+    var sync = new GroupMemberSync(u, batchSize, dryRun, force ? 100 : maxRemovePercent, new GroupMemberSync.Listener() {
+      @Override
+      public void added(String group, String memberDN) {
+        if (dryRun) {
+          out().println(Help.Ansi.AUTO.string("@|green + " + group + " " + memberDN + "|@"));
+        }
+      }
+
+      @Override
+      public void removed(String group, String memberDN) {
+        if (dryRun) {
+          out().println(Help.Ansi.AUTO.string("@|red - " + group + " " + memberDN + "|@"));
+        }
+      }
+
+      @Override
+      public void unknownUser(String group, String uid) {
+        err().println(Help.Ansi.AUTO.string("@|bold,yellow User " + uid + " listed for group " + group + " not found!|@"));
+      }
+    });
+
+    int unknownUsers = 0;
+    for (var list : lists.entrySet()) {
+      GroupMemberSync.Result result;
+      if (list.getValue().equals("-")) {
+        result = sync.sync(list.getKey(), new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+      } else {
+        // not converted by picocli, which would have made - a path
+        try (var reader = Files.newBufferedReader(resolve(list.getValue()), StandardCharsets.UTF_8)) {
+          result = sync.sync(list.getKey(), reader);
+        }
+      }
+      unknownUsers += result.unknownUsers();
+
+      String verb = dryRun ? " would be " : " ";
+      out().println(Help.Ansi.AUTO.string("@|bold,green Group " + list.getKey() + ": " + result.added() + " members" + verb + "added, " + result.removed() + verb + "removed|@"));
+    }
+
+    return unknownUsers == 0 ? ExitCode.OK : ExitCode.SOFTWARE;
+  }
+
   @Command(name = "add-ssh-key")
   int addSshKey(@Parameters(paramLabel = "username") String username, @Parameters(paramLabel = "path-to-public-key") Path sshPublicKeyPath) throws IOException, LDAPException {
-    String publicKey = Files.readString(sshPublicKeyPath, StandardCharsets.UTF_8);
+    List<String> keys = Files.readAllLines(sshPublicKeyPath, StandardCharsets.UTF_8);
 
-    String[] keys = publicKey.split("\n");
-    for (String key : keys) {
-      if (!key.isEmpty()) {
-        u.addSshKey(username, key);
-        System.out.println(Help.Ansi.AUTO.string("@|bold,green Key added successfully to user " + username + ":|@ @|underline " + key + "|@"));
-      }
+    var added = u.addSshKeys(username, keys);
+    for (SshPublicKey key : added) {
+      out().println(Help.Ansi.AUTO.string("@|bold,green Key added successfully to user " + username + ":|@ @|underline " + key + "|@"));
+    }
+    // keys are the same key by fingerprint, a key repeated in the input counts once
+    int present = new HashSet<>(SshPublicKey.parseAll(keys)).size() - added.size();
+    if (present > 0) {
+      out().println(Help.Ansi.AUTO.string("@|bold,yellow " + present + " keys were already present for user " + username + "|@"));
     }
 
     return ExitCode.OK;
@@ -141,14 +504,27 @@ public class Manager implements Runnable {
 
   @Command(name = "remove-ssh-key")
   int removeSshKey(@Parameters(paramLabel = "username") String username, @Parameters(paramLabel = "path-to-public-key") Path sshPublicKeyPath) throws IOException, LDAPException {
-    String publicKey = Files.readString(sshPublicKeyPath, StandardCharsets.UTF_8);
+    List<String> keys = Files.readAllLines(sshPublicKeyPath, StandardCharsets.UTF_8);
 
-    String[] keys = publicKey.split("\n");
-    for (String key : keys) {
-      if (!key.isEmpty()) {
-        u.removeSshKey(username, key);
-        System.out.println(Help.Ansi.AUTO.string("@|bold,green Key removed successfully from user " + username + " if existed:|@ @|underline " + key + "|@"));
-      }
+    var removed = u.removeSshKeys(username, keys);
+    for (String key : removed) {
+      out().println(Help.Ansi.AUTO.string("@|bold,green Key removed successfully from user " + username + ":|@ @|underline " + key + "|@"));
+    }
+    if (removed.isEmpty()) {
+      out().println(Help.Ansi.AUTO.string("@|bold,yellow None of the keys existed for user " + username + "|@"));
+    }
+
+    return ExitCode.OK;
+  }
+
+  @Command(name = "set-ssh-keys", description = "Replace all keys of a user with the keys in the file")
+  int setSshKeys(@Parameters(paramLabel = "username") String username, @Parameters(paramLabel = "path-to-public-keys") Path sshPublicKeysPath) throws IOException, LDAPException {
+    List<String> keys = Files.readAllLines(sshPublicKeysPath, StandardCharsets.UTF_8);
+
+    var set = u.replaceSshKeys(username, keys);
+    out().println(Help.Ansi.AUTO.string("@|bold,green User " + username + " now has " + set.size() + " keys:|@"));
+    for (SshPublicKey key : set) {
+      out().println(key);
     }
 
     return ExitCode.OK;
@@ -156,17 +532,113 @@ public class Manager implements Runnable {
 
   @Command(name = "get-ssh-keys")
   int getSshKeys(@Parameters(paramLabel = "username") String username) throws LDAPSearchException {
-    var user = u.getUserEntry(username);
+    var user = u.getUserEntry(username, "sshPublicKey");
     String[] keys = user.getAttributeValues("sshPublicKey");
     if (keys != null && keys.length > 0) {
-      System.out.println(Help.Ansi.AUTO.string("@|bold,green Found the following " + keys.length + " keys for user " + username + ":|@"));
+      out().println(Help.Ansi.AUTO.string("@|bold,green Found the following " + keys.length + " keys for user " + username + ":|@"));
       for (String key : keys) {
-        System.out.println(key);
+        out().println(key);
       }
     } else {
-      System.out.println(Help.Ansi.AUTO.string("@|bold,yellow No keys found for user " + username + "!|@"));
+      out().println(Help.Ansi.AUTO.string("@|bold,yellow No keys found for user " + username + "!|@"));
     }
 
     return ExitCode.OK;
   }
+
+  @Command(name = "export-ssh-keys", description = "Write the keys of all users to a local index for authorized-keys")
+  int exportSshKeys(
+    @Option(names = "--index", defaultValue = SshKeyIndex.DEFAULT_PATH, description = "Index file (default: ${DEFAULT-VALUE})") Path index,
+    @Option(names = "--full", description = "Fetch all keys instead of only those of users changed since the last export") boolean full)
+    throws IOException, LDAPException {
+    var result = SshKeyIndex.refresh(u, index, full);
+    out().println(Help.Ansi.AUTO.string("@|bold,green Wrote " + result.users() + " users to " + index
+      + (result.full() ? "" : " (" + result.changed() + " changed)") + "|@"));
+
+    return ExitCode.OK;
+  }
+
+  // for sshd's AuthorizedKeysCommand: prints the keys of the user from the local index, so logins don't
+  // depend on the LDAP server and never block on it
+  @Command(name = "authorized-keys", description = "Print the keys of a user from the index written by export-ssh-keys")
+  int authorizedKeys(
+    @Option(names = "--index", defaultValue = SshKeyIndex.DEFAULT_PATH, description = "Index file (default: ${DEFAULT-VALUE})") Path index,
+    @Parameters(paramLabel = "username") String username) throws IOException {
+    try (var keys = SshKeyIndex.open(index)) {
+      List<String> found = keys.lookup(username);
+      if (found == null) {
+        return ExitCode.SOFTWARE;
+      }
+      for (String key : found) {
+        out().println(key);
+      }
+    }
+    out().flush();
+
+    return ExitCode.OK;
+  }
+
+  @Command(name = "audit", description = "Check for dangling members, duplicate uid/gid numbers, users without their primary group and counters behind the numbers in use")
+  int audit(
+    @Option(names = "--fix", description = "Remove dangling members and move counters past the highest number in use; the other problems are only reported") boolean fix,
+    @Option(names = "--page-size", defaultValue = "1000", description = "Number of entries per search page (default: ${DEFAULT-VALUE})") int pageSize,
+    @Option(names = "--batch-size", defaultValue = "500", description = "Number of entries looked up or members removed at once (default: ${DEFAULT-VALUE})") int batchSize)
+    throws LDAPException {
+    var audit = new DirectoryAudit(u, pageSize, batchSize, fix, new DirectoryAudit.Listener() {
+      @Override
+      public void found(DirectoryAudit.Problem problem, String dn, String detail) {
+        out().println(Help.Ansi.AUTO.string("@|yellow " + problem + " " + dn + ": " + detail + "|@"));
+      }
+
+      @Override
+      public void fixed(DirectoryAudit.Problem problem, String dn, String detail) {
+        out().println(Help.Ansi.AUTO.string("@|green fixed " + problem + " " + dn + ": " + detail + "|@"));
+      }
+    });
+    var result = audit.audit();
+
+    if (result.total() == 0) {
+      out().println(Help.Ansi.AUTO.string("@|bold,green " + result.users() + " users and " + result.groups() + " groups checked, no problems found!|@"));
+      return ExitCode.OK;
+    }
+    out().println(Help.Ansi.AUTO.string("@|bold,yellow " + result.users() + " users and " + result.groups() + " groups checked, "
+      + result.total() + " problems found" + (fix ? ", " + result.fixed() + " fixed" : "") + "!|@"));
+    return result.fixed() == result.total() ? ExitCode.OK : ExitCode.SOFTWARE;
+  }
+
+  @Command(name = "serve", description = "Keep LDAP connections open and execute commands received on a UNIX domain socket")
+  int serve(
+    @Option(names = "--socket", defaultValue = CommandServer.DEFAULT_SOCKET, description = "Socket to listen on (default: ${DEFAULT-VALUE})") Path socket,
+    @Option(names = "--connections", defaultValue = "4", description = "Number of LDAP connections kept open (default: ${DEFAULT-VALUE})") int connections,
+    @Option(names = "--metrics-port", description = "Serve LDAP operation statistics for Prometheus on http://localhost:PORT/metrics") Integer metricsPort) throws IOException {
+    if (metricsPort != null) {
+      stats = new LDAPStats();
+    }
+    init(connections);
+
+    HttpServer metrics = metricsPort != null ? stats.exportMetrics(new InetSocketAddress(InetAddress.getLoopbackAddress(), metricsPort)) : null;
+    var server = new CommandServer(socket, u);
+    var stopped = new CountDownLatch(1);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      server.close();
+      try {
+        stopped.await();
+      } catch (InterruptedException ignored) {
+      }
+    }));
+
+    out().println(Help.Ansi.AUTO.string("@|bold,green Listening on " + socket + "|@"));
+    boolean written;
+    try {
+      server.serve();
+    } finally {
+      if (metrics != null) {
+        metrics.stop(0);
+      }
+      written = shutdown();
+      stopped.countDown();
+    }
+
+    return written ? ExitCode.OK : ExitCode.SOFTWARE;
+  }
 }
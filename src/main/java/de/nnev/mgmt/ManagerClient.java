@@ -0,0 +1,51 @@
+package de.nnev.mgmt;
+
+import org.newsclub.net.unix.AFUNIXSocket;
+import org.newsclub.net.unix.AFUNIXSocketAddress;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+// forwards its arguments to a running "ldap-user-mgmt serve", see CommandServer for the protocol
+public final class ManagerClient {
+
+  public static final String SOCKET_ENV = "LDAP_USER_MGMT_SOCKET";
+
+  private ManagerClient() {
+  }
+
+  public static void main(String... args) {
+    String socketPath = System.getenv(SOCKET_ENV);
+    if (socketPath == null) {
+      socketPath = CommandServer.DEFAULT_SOCKET;
+    }
+
+    try (AFUNIXSocket socket = AFUNIXSocket.newInstance()) {
+      socket.connect(AFUNIXSocketAddress.of(Path.of(socketPath)));
+
+      var fields = new ByteArrayOutputStream();
+      fields.write(Path.of("").toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+      fields.write(0);
+      for (String arg : args) {
+        fields.write(arg.getBytes(StandardCharsets.UTF_8));
+        fields.write(0);
+      }
+      var request = new BufferedOutputStream(socket.getOutputStream());
+      request.write((fields.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+      fields.writeTo(request);
+      request.flush();
+
+      var response = new BufferedInputStream(socket.getInputStream());
+      int exitCode = (int) CommandServer.readNumber(response);
+      System.out.print(CommandServer.readString(response));
+      System.out.flush();
+      System.err.print(CommandServer.readString(response));
+      System.err.flush();
+      System.exit(exitCode);
+    } catch (IOException e) {
+      System.err.println("Unable to reach ldap-user-mgmt server at " + socketPath + ": " + e.getMessage());
+      System.exit(1);
+    }
+  }
+}
@@ -1,12 +1,36 @@
 package de.nnev.mgmt;
 
+import com.unboundid.asn1.ASN1OctetString;
 import com.unboundid.ldap.sdk.*;
+import com.unboundid.ldap.sdk.controls.PermissiveModifyRequestControl;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import com.unboundid.ldap.sdk.controls.TransactionSpecificationRequestControl;
+import com.unboundid.ldap.sdk.extensions.EndTransactionExtendedRequest;
+import com.unboundid.ldap.sdk.extensions.StartTransactionExtendedRequest;
+import com.unboundid.ldap.sdk.extensions.StartTransactionExtendedResult;
 import org.newsclub.net.unix.AFUNIXSocketFactory;
 
 import javax.net.SocketFactory;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 import static com.unboundid.ldap.sdk.ModificationType.ADD;
 import static com.unboundid.ldap.sdk.ModificationType.DELETE;
+import static com.unboundid.ldap.sdk.ModificationType.REPLACE;
+import static com.unboundid.ldap.sdk.SearchScope.BASE;
 import static com.unboundid.ldap.sdk.SearchScope.SUB;
 
 public class ManagerLDAP {
@@ -35,12 +59,81 @@ public class ManagerLDAP {
   public static final String UID_DN = "cn=Next POSIX UID,ou=administration," + LDAP_BASE;
   public static final String GID_DN = "cn=Next POSIX GID,ou=administration," + LDAP_BASE;
 
+  private static final DN USERS_BASE_DN = parseDN(USERS_BASE);
+  private static final DN GROUPS_BASE_DN = parseDN(GROUPS_BASE);
+  private static final DN USER_GROUPS_BASE_DN = parseDN(USER_GROUPS_BASE);
+
+  static final Filter USER_FILTER =
+    Filter.createANDFilter(
+      Filter.createEqualityFilter("objectClass", "account"),
+      Filter.createEqualityFilter("objectClass", "posixAccount"));
+  static final Filter GROUP_FILTER =
+    Filter.createANDFilter(
+      Filter.createEqualityFilter("objectClass", "groupOfEntries"),
+      Filter.createEqualityFilter("objectClass", "posixGroup"));
+
+  private static final int MAX_ID_ATTEMPTS = 32;
+  private static final long ID_BACKOFF_BASE_MILLIS = 2;
+  private static final long ID_BACKOFF_MAX_MILLIS = 250;
+
   private final LDAPInterface ldap;
 
+  private IdAllocator uidAllocator;
+  private IdAllocator gidAllocator;
+
+  private EntryCache entryCache;
+
+  // whether the server supports RFC 5805 transactions, null until checked
+  private Boolean transactionsSupported;
+
   public ManagerLDAP(LDAPInterface ldap) {
     this.ldap = ldap;
   }
 
+  public void setIdAllocators(IdAllocator uidAllocator, IdAllocator gidAllocator) {
+    this.uidAllocator = uidAllocator;
+    this.gidAllocator = gidAllocator;
+  }
+
+  public void useBlockAllocation(int blockSize) {
+    setIdAllocators(
+      new BlockIdAllocator(this, UID_DN, "uidNumber", blockSize),
+      new BlockIdAllocator(this, GID_DN, "gidNumber", blockSize));
+  }
+
+  // a number free as uid and as gid if both allocators fill gaps, user groups then get the number of their user;
+  // null otherwise
+  private Integer nextIdNumberPair() throws LDAPException {
+    if (uidAllocator instanceof GapIdAllocator uids && gidAllocator instanceof GapIdAllocator gids) {
+      return GapIdAllocator.nextPair(uids, gids);
+    }
+    return null;
+  }
+
+  public void releaseIdNumbers() throws LDAPException {
+    if (uidAllocator != null) {
+      uidAllocator.close();
+    }
+    if (gidAllocator != null) {
+      gidAllocator.close();
+    }
+  }
+
+  public void setEntryCache(EntryCache entryCache) {
+    this.entryCache = entryCache;
+  }
+
+  public EntryCache getEntryCache() {
+    return entryCache;
+  }
+
+  // to be called after writes that bypass the methods of this class
+  public void invalidate(DN dn) {
+    if (entryCache != null) {
+      entryCache.invalidate(dn);
+    }
+  }
+
   public static LDAPConnection getLDAPiConnection() throws LDAPException {
     SocketFactory sf = new AFUNIXSocketFactory.FactoryArg(OPENLDAP_UNIX_SOCKET);
 
@@ -50,6 +143,40 @@ public class ManagerLDAP {
     return conn;
   }
 
+  public static LDAPConnectionPool getLDAPiConnectionPool(int connections) throws LDAPException {
+    SocketFactory sf = new AFUNIXSocketFactory.FactoryArg(OPENLDAP_UNIX_SOCKET);
+
+    return new LDAPConnectionPool(
+      new SingleServerSet(LDAPI_HOST, LDAPI_PORT, sf),
+      new EXTERNALBindRequest(OPENLDAP_UNIX_AUTHZ_ID),
+      connections,
+      connections);
+  }
+
+  // ldapi://<url-encoded socket path> binds with SASL EXTERNAL like the local connection, ldap://host:port reads
+  // anonymously; a server that is down does not make this fail, connections are retried when they are needed
+  public static LDAPConnectionPool getConnectionPool(String url, int connections) throws LDAPException {
+    ServerSet serverSet;
+    BindRequest bindRequest = null;
+    if (url.startsWith("ldapi://")) {
+      String path = URLDecoder.decode(url.substring("ldapi://".length()), StandardCharsets.UTF_8);
+      serverSet = new SingleServerSet(LDAPI_HOST, LDAPI_PORT, new AFUNIXSocketFactory.FactoryArg(path.isEmpty() ? OPENLDAP_UNIX_SOCKET : path));
+      bindRequest = new EXTERNALBindRequest(OPENLDAP_UNIX_AUTHZ_ID);
+    } else {
+      var ldapURL = new LDAPURL(url);
+      if (!ldapURL.getScheme().equals("ldap")) {
+        throw new LDAPException(ResultCode.PARAM_ERROR, "Unsupported URL " + url + ", expected ldapi:// or ldap://");
+      }
+      serverSet = new SingleServerSet(ldapURL.getHost(), ldapURL.getPort());
+    }
+
+    return new LDAPConnectionPool(serverSet, bindRequest, 1, connections, null, false);
+  }
+
+  LDAPInterface getLDAP() {
+    return ldap;
+  }
+
   public int addUser(String uid, String name, String gid, String shell, String home)
     throws LDAPException {
     int gidNumber = getGidNumber(gid);
@@ -61,11 +188,48 @@ public class ManagerLDAP {
     checkPosixUid(uid);
     checkPosixUidUnique(uid);
 
-    int uidNumber = getNextUidNumber();
-    DN userDN = new DN(new RDN("uid", uid), new DN(USERS_BASE));
-    Entry user =
+    return createUser(uid, name, gidNumber, shell, home);
+  }
+
+  private int createUser(String uid, String name, int gidNumber, String shell, String home) throws LDAPException {
+    return createUser(uid, name, getNextUidNumber(), gidNumber, shell, home);
+  }
+
+  private int createUser(String uid, String name, int uidNumber, int gidNumber, String shell, String home) throws LDAPException {
+    ldap.add(createUserEntry(uid, name, uidNumber, gidNumber, shell, home));
+
+    return uidNumber;
+  }
+
+  public static DN getUserDN(String uid) throws LDAPException {
+    return userDN(uid);
+  }
+
+  public static DN getGroupDN(String gid, GroupType groupType) throws LDAPException {
+    return groupDN(gid, groupType);
+  }
+
+  static DN userDN(String uid) {
+    return new DN(new RDN("uid", uid), USERS_BASE_DN);
+  }
+
+  static DN groupDN(String gid, GroupType groupType) {
+    return new DN(new RDN("cn", gid), groupType == GroupType.UserGroup ? USER_GROUPS_BASE_DN : GROUPS_BASE_DN);
+  }
+
+  private static DN parseDN(String dn) {
+    try {
+      return new DN(dn);
+    } catch (LDAPException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static Entry createUserEntry(String uid, String name, int uidNumber, int gidNumber, String shell, String home)
+    throws LDAPException {
+    return
       new Entry(
-        userDN,
+        getUserDN(uid),
         new Attribute("objectClass", "top", "account", "posixAccount", "ldapPublicKey"),
         new Attribute("cn", name),
         new Attribute("uid", uid),
@@ -73,10 +237,6 @@ public class ManagerLDAP {
         new Attribute("gidNumber", String.valueOf(gidNumber)),
         new Attribute("loginShell", shell),
         new Attribute("homeDirectory", home));
-
-    ldap.add(user);
-
-    return uidNumber;
   }
 
   public int addUserWithUserGroup(String uid, String name, String shell) throws LDAPException {
@@ -84,9 +244,272 @@ public class ManagerLDAP {
     checkPosixUid(uid);
     checkPosixUidUnique(uid);
 
+    Integer idNumber = nextIdNumberPair();
+    if (idNumber != null) {
+      checkPosixGidUnique(uid);
+      ldap.add(createGroupEntry(uid, GroupType.UserGroup, idNumber));
+      return createUser(uid, name, idNumber, idNumber, shell, "/home/" + uid);
+    }
+
     int gidNumber = addGroup(uid, GroupType.UserGroup);
 
-    return addUser(uid, name, gidNumber, shell, "/home/" + uid);
+    return createUser(uid, name, gidNumber, shell, "/home/" + uid);
+  }
+
+  // creates the user group and the user, adds the user to the groups and bumps both counters in one transaction
+  // (RFC 5805), so either all of it happens or nothing. Without transaction support the steps are executed one by
+  // one and undone by compensating operations if one fails.
+  public int addUserWithUserGroupAtomically(String uid, String name, String shell, Collection<String> groups) throws LDAPException {
+    checkPosixUid(uid);
+    checkPosixUidUnique(uid);
+    checkPosixGidUnique(uid);
+
+    List<DN> groupDNs = new ArrayList<>(groups.size());
+    for (String group : groups) {
+      groupDNs.add(getGroupEntry(group, SearchRequest.NO_ATTRIBUTES).getParsedDN());
+    }
+
+    LDAPConnection conn = LDAPConnections.checkout(ldap);
+    try {
+      if (conn != null && supportsTransactions(conn)) {
+        return createInTransaction(conn, uid, name, shell, groupDNs);
+      }
+      return createWithCompensation(uid, name, shell, groupDNs);
+    } finally {
+      LDAPConnections.release(ldap, conn);
+      for (DN groupDN : groupDNs) {
+        invalidate(groupDN);
+      }
+    }
+  }
+
+  private boolean supportsTransactions(LDAPConnection conn) throws LDAPException {
+    if (transactionsSupported == null) {
+      RootDSE rootDSE = LDAPStats.instrumentLike(ldap, conn).getRootDSE();
+      transactionsSupported = rootDSE != null && rootDSE.supportsExtendedOperation(StartTransactionExtendedRequest.START_TRANSACTION_REQUEST_OID);
+    }
+    return transactionsSupported;
+  }
+
+  private int createInTransaction(LDAPConnection conn, String uid, String name, String shell, List<DN> groupDNs) throws LDAPException {
+    LDAPInterface counted = LDAPStats.instrumentLike(ldap, conn);
+    // numbers from allocators are reserved already, only the counters are part of the transaction
+    Integer idNumber = nextIdNumberPair();
+    Integer reservedUidNumber = idNumber != null ? idNumber : uidAllocator != null ? uidAllocator.next() : null;
+    Integer reservedGidNumber = idNumber != null ? idNumber : gidAllocator != null ? gidAllocator.next() : null;
+
+    for (int attempt = 0; attempt < MAX_ID_ATTEMPTS; attempt++) {
+      if (attempt > 0) {
+        backoff(attempt);
+      }
+
+      int[] counters = reservedUidNumber == null || reservedGidNumber == null ? readCounters(counted) : null;
+      int uidCounter = reservedUidNumber == null ? counters[0] : 0;
+      int gidCounter = reservedGidNumber == null ? counters[1] : 0;
+      int[] unused = firstUnusedPosixIdNumbers(counted, reservedUidNumber == null ? uidCounter : -1, reservedGidNumber == null ? gidCounter : -1);
+      int uidNumber = reservedUidNumber != null ? reservedUidNumber : unused[0];
+      int gidNumber = reservedGidNumber != null ? reservedGidNumber : unused[1];
+
+      List<UpdatableLDAPRequest> requests = new ArrayList<>();
+      if (reservedUidNumber == null) {
+        requests.add(new ModifyRequest(UID_DN,
+          new Modification(DELETE, "uidNumber", String.valueOf(uidCounter)),
+          new Modification(ADD, "uidNumber", String.valueOf(uidNumber + 1))));
+      }
+      if (reservedGidNumber == null) {
+        requests.add(new ModifyRequest(GID_DN,
+          new Modification(DELETE, "gidNumber", String.valueOf(gidCounter)),
+          new Modification(ADD, "gidNumber", String.valueOf(gidNumber + 1))));
+      }
+      requests.add(new AddRequest(createGroupEntry(uid, GroupType.UserGroup, gidNumber)));
+      requests.add(new AddRequest(createUserEntry(uid, name, uidNumber, gidNumber, shell, "/home/" + uid)));
+      for (DN groupDN : groupDNs) {
+        var request = new ModifyRequest(groupDN, new Modification(ADD, "member", userDN(uid).toString()));
+        request.addControl(new PermissiveModifyRequestControl());
+        requests.add(request);
+      }
+
+      LDAPResult result = runTransaction(conn, requests);
+      if (result.getResultCode() == ResultCode.SUCCESS) {
+        return uidNumber;
+      }
+
+      // somebody else took one of the numbers, the counters will have moved on
+      int[] current = counters != null ? readCounters(counted) : null;
+      boolean lostRace = (reservedUidNumber == null && current[0] != uidCounter) || (reservedGidNumber == null && current[1] != gidCounter);
+      if (!lostRace) {
+        releaseUnused(reservedUidNumber, reservedGidNumber);
+        throw new LDAPException(result);
+      }
+    }
+
+    releaseUnused(reservedUidNumber, reservedGidNumber);
+    throw new LDAPException(ResultCode.BUSY, "Unable to reserve free uid and gid numbers after " + MAX_ID_ATTEMPTS + " attempts");
+  }
+
+  // gives numbers of the allocators back once the transaction definitely did not use them
+  private void releaseUnused(Integer uidNumber, Integer gidNumber) {
+    if (uidNumber != null) {
+      compensate(() -> uidAllocator.release(uidNumber));
+    }
+    if (gidNumber != null) {
+      compensate(() -> gidAllocator.release(gidNumber));
+    }
+  }
+
+  // uid and gid counter with one search instead of one read each
+  private static int[] readCounters(LDAPInterface conn) throws LDAPException {
+    DN uidDN = new DN(UID_DN);
+    DN gidDN = new DN(GID_DN);
+    int[] counters = {-1, -1};
+    var result = conn.search(uidDN.getParentString(), SearchScope.ONE, Filter.createORFilter(
+      Filter.createPresenceFilter("uidNumber"), Filter.createPresenceFilter("gidNumber")), "uidNumber", "gidNumber");
+    for (SearchResultEntry entry : result.getSearchEntries()) {
+      if (entry.getParsedDN().equals(uidDN) && entry.getAttributeValueAsInteger("uidNumber") != null) {
+        counters[0] = entry.getAttributeValueAsInteger("uidNumber");
+      } else if (entry.getParsedDN().equals(gidDN) && entry.getAttributeValueAsInteger("gidNumber") != null) {
+        counters[1] = entry.getAttributeValueAsInteger("gidNumber");
+      }
+    }
+    if (counters[0] < 0 || counters[1] < 0) {
+      throw new LDAPException(ResultCode.NO_SUCH_OBJECT, "No uidNumber counter at " + UID_DN + " or no gidNumber counter at " + GID_DN);
+    }
+    return counters;
+  }
+
+  // the lowest unused uid and gid number at or above the counters (-1 to skip one) with one search for the numbers
+  // in use above both
+  private static int[] firstUnusedPosixIdNumbers(LDAPInterface conn, int uidCounter, int gidCounter) throws LDAPException {
+    int[] counters = {uidCounter, gidCounter};
+    String[] attributeNames = {"uidNumber", "gidNumber"};
+    List<Filter> windows = new ArrayList<>(2);
+    for (int i = 0; i < 2; i++) {
+      if (counters[i] >= 0) {
+        windows.add(Filter.createANDFilter(
+          idNumberHolderFilter(attributeNames[i]),
+          Filter.createGreaterOrEqualFilter(attributeNames[i], String.valueOf(counters[i])),
+          Filter.createLessOrEqualFilter(attributeNames[i], String.valueOf(counters[i] + MAX_ID_ATTEMPTS - 1))));
+      }
+    }
+    int[] unused = {-1, -1};
+    if (windows.isEmpty()) {
+      return unused;
+    }
+
+    // every entry found holds its numbers, accounts their gidNumber as primary group
+    List<Set<Integer>> used = List.of(new HashSet<>(), new HashSet<>());
+    for (SearchResultEntry entry : conn.search(LDAP_BASE, SUB, Filter.createORFilter(windows), attributeNames).getSearchEntries()) {
+      for (int i = 0; i < 2; i++) {
+        Integer number = entry.getAttributeValueAsInteger(attributeNames[i]);
+        if (number != null) {
+          used.get(i).add(number);
+        }
+      }
+    }
+    for (int i = 0; i < 2; i++) {
+      if (counters[i] < 0) {
+        continue;
+      }
+      for (int number = counters[i]; number < counters[i] + MAX_ID_ATTEMPTS && unused[i] < 0; number++) {
+        if (!used.get(i).contains(number)) {
+          unused[i] = number;
+        }
+      }
+      if (unused[i] < 0) {
+        throw new LDAPException(ResultCode.BUSY, "No free " + attributeNames[i] + " near the counter, the counter may be behind the numbers in use");
+      }
+    }
+    return unused;
+  }
+
+  // returns the result of the commit, or of the request that made the transaction abort. The requests within the
+  // transaction are sent back-to-back, the server only queues them until the commit.
+  private LDAPResult runTransaction(LDAPConnection conn, List<UpdatableLDAPRequest> requests) throws LDAPException {
+    var start = (StartTransactionExtendedResult) processExtendedOperation(conn, new StartTransactionExtendedRequest());
+    if (start.getResultCode() != ResultCode.SUCCESS) {
+      throw new LDAPException(start);
+    }
+
+    var control = new TransactionSpecificationRequestControl(start.getTransactionID());
+    List<Future<LDAPResult>> results = new ArrayList<>(requests.size());
+    try (var writer = new PipelinedWriter(ldap, conn, requests.size())) {
+      for (UpdatableLDAPRequest request : requests) {
+        request.addControl(control);
+        results.add(request instanceof AddRequest add ? writer.add(add) : writer.modify((ModifyRequest) request));
+      }
+    }
+    for (Future<LDAPResult> future : results) {
+      LDAPResult result = PipelinedWriter.await(future);
+      if (result.getResultCode() != ResultCode.SUCCESS) {
+        // the server may have aborted the transaction already
+        compensate(() -> processExtendedOperation(conn, new EndTransactionExtendedRequest(start.getTransactionID(), false)));
+        return result;
+      }
+    }
+
+    return processExtendedOperation(conn, new EndTransactionExtendedRequest(start.getTransactionID(), true));
+  }
+
+  // extended operations are no LDAPInterface methods, so they are timed here
+  private ExtendedResult processExtendedOperation(LDAPConnection conn, ExtendedRequest request) throws LDAPException {
+    var timer = LDAPStats.start(ldap, "extended");
+    try {
+      ExtendedResult result = conn.processExtendedOperation(request);
+      timer.stop(result);
+      return result;
+    } catch (LDAPException e) {
+      timer.stop(e);
+      throw e;
+    }
+  }
+
+  private int createWithCompensation(String uid, String name, String shell, List<DN> groupDNs) throws LDAPException {
+    Integer idNumber = nextIdNumberPair();
+    int gidNumber = idNumber != null ? idNumber : getNextGidNumber();
+    int uidNumber = idNumber != null ? idNumber : getNextUidNumber();
+    DN groupDN = groupDN(uid, GroupType.UserGroup);
+    DN userDN = userDN(uid);
+
+    List<Runnable> undo = new ArrayList<>();
+    try {
+      ldap.add(createGroupEntry(uid, GroupType.UserGroup, gidNumber));
+      undo.add(() -> compensate(() -> ldap.delete(groupDN.toString())));
+      ldap.add(createUserEntry(uid, name, uidNumber, gidNumber, shell, "/home/" + uid));
+      undo.add(() -> compensate(() -> ldap.delete(userDN.toString())));
+      for (DN memberOf : groupDNs) {
+        modifyMembers(memberOf, ADD, List.of(userDN.toString()));
+        undo.add(() -> compensate(() -> modifyMembers(memberOf, DELETE, List.of(userDN.toString()))));
+      }
+      return uidNumber;
+    } catch (LDAPException | RuntimeException e) {
+      for (int i = undo.size() - 1; i >= 0; i--) {
+        undo.get(i).run();
+      }
+      // the counter can only be reset as long as nobody has taken numbers after ours
+      if (uidAllocator == null) {
+        compensate(() -> returnPosixIdNumbers(UID_DN, "uidNumber", uidNumber, uidNumber + 1));
+      } else {
+        compensate(() -> uidAllocator.release(uidNumber));
+      }
+      if (gidAllocator == null) {
+        compensate(() -> returnPosixIdNumbers(GID_DN, "gidNumber", gidNumber, gidNumber + 1));
+      } else {
+        compensate(() -> gidAllocator.release(gidNumber));
+      }
+      throw e;
+    }
+  }
+
+  private interface Compensation {
+    void run() throws LDAPException;
+  }
+
+  // undoing is best effort, the original error is what the caller needs to see
+  private static void compensate(Compensation compensation) {
+    try {
+      compensation.run();
+    } catch (LDAPException ignored) {
+    }
   }
 
   public int addGroup(String gid, GroupType groupType) throws LDAPException {
@@ -94,39 +517,57 @@ public class ManagerLDAP {
     checkPosixGidUnique(gid);
 
     int gidNumber = getNextGidNumber();
+    ldap.add(createGroupEntry(gid, groupType, gidNumber));
+
+    return gidNumber;
+  }
 
-    DN groupDN = new DN(new RDN("cn", gid), new DN(groupType.BASE_DN));
-    Entry group =
+  public static Entry createGroupEntry(String gid, GroupType groupType, int gidNumber) throws LDAPException {
+    return
       new Entry(
-        groupDN,
+        getGroupDN(gid, groupType),
         new Attribute("objectClass", "top", "groupOfEntries", "posixGroup"),
         new Attribute("cn", gid),
         new Attribute("gidNumber", String.valueOf(gidNumber)));
-
-    ldap.add(group);
-
-    return gidNumber;
   }
 
   public void addUserToGroup(String uid, String gid) throws LDAPException {
-    Entry user = getUserEntry(uid);
-    Entry groupBefore = getGroupEntry(gid);
-    Entry groupAfter = groupBefore.duplicate();
-    groupAfter.addAttribute("member", user.getDN());
-    var mods = Entry.diff(groupBefore, groupAfter, true, true);
-    if (!mods.isEmpty()) {
-      ldap.modify(new ModifyRequest(groupBefore.getDN(), mods));
-    }
+    changeMembership(uid, gid, ADD);
   }
 
   public void removeUserFromGroup(String uid, String gid) throws LDAPException {
-    Entry user = getUserEntry(uid);
-    Entry groupBefore = getGroupEntry(gid);
-    Entry groupAfter = groupBefore.duplicate();
-    groupAfter.removeAttributeValue("member", user.getDN());
-    var mods = Entry.diff(groupBefore, groupAfter, true, true);
-    if (!mods.isEmpty()) {
-      ldap.modify(new ModifyRequest(groupBefore.getDN(), mods));
+    changeMembership(uid, gid, DELETE);
+  }
+
+  // sends only the single member value, the group's member list is never fetched
+  private void changeMembership(String uid, String gid, ModificationType modificationType) throws LDAPException {
+    DN userDN = getUserEntry(uid, SearchRequest.NO_ATTRIBUTES).getParsedDN();
+    DN groupDN = getGroupEntry(gid, SearchRequest.NO_ATTRIBUTES).getParsedDN();
+    modifyMembers(groupDN, modificationType, List.of(userDN.toString()));
+  }
+
+  // adding existing members and removing non-members is not an error (permissive modify)
+  public void modifyMembers(DN groupDN, ModificationType modificationType, Collection<String> memberDNs) throws LDAPException {
+    if (memberDNs.isEmpty()) {
+      return;
+    }
+
+    var request = new ModifyRequest(groupDN, new Modification(modificationType, "member", memberDNs.toArray(new String[0])));
+    request.addControl(new PermissiveModifyRequestControl());
+    try {
+      ldap.modify(request);
+    } catch (LDAPException e) {
+      // a server ignoring the control rejects the whole modify, so the values have to be sent one by one
+      if (e.getResultCode() != ResultCode.ATTRIBUTE_OR_VALUE_EXISTS && e.getResultCode() != ResultCode.NO_SUCH_ATTRIBUTE) {
+        throw e;
+      }
+      if (memberDNs.size() > 1) {
+        for (String memberDN : memberDNs) {
+          modifyMembers(groupDN, modificationType, List.of(memberDN));
+        }
+      }
+    } finally {
+      invalidate(groupDN);
     }
   }
 
@@ -146,79 +587,400 @@ public class ManagerLDAP {
     }
   }
 
-  public Entry getUserEntry(String uid) throws LDAPSearchException {
-    var res =
-      ldap.search(
-        ManagerLDAP.USERS_BASE,
-        SUB,
-        Filter.createANDFilter(
-          Filter.createEqualityFilter("objectClass", "account"),
-          Filter.createEqualityFilter("objectClass", "posixAccount"),
-          Filter.createEqualityFilter("uid", uid)));
+  static Filter userFilter(String uid) {
+    return Filter.createANDFilter(USER_FILTER, Filter.createEqualityFilter("uid", uid));
+  }
+
+  static Filter groupFilter(String gid) {
+    return Filter.createANDFilter(GROUP_FILTER, Filter.createEqualityFilter("cn", gid));
+  }
 
-    switch (res.getEntryCount()) {
-      case 0 -> throw new RuntimeException("User not found");
-      case 1 -> {
-        return res.getSearchEntries().get(0);
+  static String userCacheKey(String uid) {
+    return "user:" + uid.toLowerCase();
+  }
+
+  static String groupCacheKey(String gid) {
+    return "group:" + gid.toLowerCase();
+  }
+
+  // attributes restricts the returned attributes, none means all user attributes
+  public Entry getUserEntry(String uid, String... attributes) throws LDAPSearchException {
+    return lookup("User", userCacheKey(uid), List.of(userDN(uid)), USERS_BASE, USER_FILTER, Filter.createEqualityFilter("uid", uid), attributes);
+  }
+
+  public Entry getGroupEntry(String gid, String... attributes) throws LDAPSearchException {
+    return lookup("Group", groupCacheKey(gid), List.of(groupDN(gid, GroupType.RegularGroup), groupDN(gid, GroupType.UserGroup)), GROUPS_BASE, GROUP_FILTER, Filter.createEqualityFilter("cn", gid), attributes);
+  }
+
+  // reads the DNs the entry is expected at first and only searches the subtree if none of them exists. With a cache
+  // the whole entry is read and cached, so that it answers lookups of any attributes, and projected locally.
+  private Entry lookup(String kind, String cacheKey, List<DN> expectedDNs, String base, Filter objectClassFilter, Filter nameFilter, String... attributes)
+    throws LDAPSearchException {
+    Entry cached = getCached(cacheKey);
+    if (cached != null) {
+      return project(cached, attributes);
+    }
+
+    String[] fetched = entryCache != null ? new String[0] : attributes;
+    Entry entry = null;
+    for (DN dn : expectedDNs) {
+      entry = readEntry(dn, objectClassFilter, fetched);
+      if (entry != null) {
+        break;
       }
-      default -> throw new RuntimeException("User not unique / general error");
     }
+
+    if (entry == null) {
+      var res = ldap.search(base, SUB, Filter.createANDFilter(objectClassFilter, nameFilter), fetched);
+      switch (res.getEntryCount()) {
+        case 0 -> throw new RuntimeException(kind + " not found");
+        case 1 -> entry = res.getSearchEntries().get(0);
+        default -> throw new RuntimeException(kind + " not unique / general error");
+      }
+    }
+
+    return entryCache != null ? project(putCached(cacheKey, entry), attributes) : entry;
   }
 
-  public Entry getGroupEntry(String gid) throws LDAPSearchException {
-    var res =
-      ldap.search(
-        ManagerLDAP.GROUPS_BASE,
-        SUB,
-        Filter.createANDFilter(
-          Filter.createEqualityFilter("objectClass", "groupOfEntries"),
-          Filter.createEqualityFilter("objectClass", "posixGroup"),
-          Filter.createEqualityFilter("cn", gid)));
+  // the requested attributes of a whole entry, like the server would have returned them
+  static Entry project(Entry entry, String... attributes) {
+    if (attributes.length == 0 || Arrays.asList(attributes).contains("*")) {
+      return entry;
+    }
+    var projected = new Entry(entry.getDN());
+    for (String attribute : attributes) {
+      Attribute values = entry.getAttribute(attribute);
+      if (values != null) {
+        projected.addAttribute(values);
+      }
+    }
+    return projected;
+  }
+
+  private Entry readEntry(DN dn, Filter objectClassFilter, String... attributes) throws LDAPSearchException {
+    try {
+      var res = ldap.search(dn.toString(), BASE, objectClassFilter, attributes);
+      return res.getEntryCount() == 1 ? res.getSearchEntries().get(0) : null;
+    } catch (LDAPSearchException e) {
+      if (e.getResultCode() == ResultCode.NO_SUCH_OBJECT) {
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  private boolean exists(String base, Filter filter) throws LDAPSearchException {
+    var request = new SearchRequest(base, SUB, filter, SearchRequest.NO_ATTRIBUTES);
+    request.setSizeLimit(1);
 
-    switch (res.getEntryCount()) {
-      case 0 -> throw new RuntimeException("Group not found");
-      case 1 -> {
-        return res.getSearchEntries().get(0);
+    try {
+      return ldap.search(request).getEntryCount() > 0;
+    } catch (LDAPSearchException e) {
+      if (e.getResultCode() == ResultCode.SIZE_LIMIT_EXCEEDED) {
+        return true;
       }
-      default -> throw new RuntimeException("Group not unique / general error");
+      throw e;
     }
   }
 
+  Entry getCached(String cacheKey) {
+    return entryCache != null ? entryCache.get(cacheKey) : null;
+  }
+
+  Entry putCached(String cacheKey, Entry entry) {
+    if (entryCache != null) {
+      try {
+        return entryCache.put(cacheKey, entry);
+      } catch (LDAPException ignored) {
+        // entries with unparsable DNs are just not cached
+      }
+    }
+    return entry;
+  }
+
   public int getGidNumber(String gid) throws LDAPSearchException {
-    Entry entry = getGroupEntry(gid);
+    Entry entry = getGroupEntry(gid, "gidNumber");
     return entry.getAttributeValueAsInteger("gidNumber");
   }
 
   public int getNextUidNumber() throws LDAPException {
+    if (uidAllocator != null) {
+      return uidAllocator.next();
+    }
     return getNextPosixIdNumber(ManagerLDAP.UID_DN, "uidNumber");
   }
 
   public int getNextGidNumber() throws LDAPException {
+    if (gidAllocator != null) {
+      return gidAllocator.next();
+    }
     return getNextPosixIdNumber(ManagerLDAP.GID_DN, "gidNumber");
   }
 
   public int getNextPosixIdNumber(String dn, String attributeName) throws LDAPException {
-    var entry = ldap.getEntry(dn, attributeName);
-    int nextID = entry.getAttributeValueAsInteger(attributeName);
+    return getNextPosixIdNumbers(dn, attributeName, 1);
+  }
+
+  // reserves count consecutive numbers with a single counter bump and returns the first one;
+  // the value-based delete turns the bump into a compare-and-swap, so a concurrent bump makes it fail and retry
+  public int getNextPosixIdNumbers(String dn, String attributeName, int count) throws LDAPException {
+    if (count < 1) {
+      throw new IllegalArgumentException("count must be positive");
+    }
+
+    boolean lostRace = false;
+    for (int attempt = 0; attempt < MAX_ID_ATTEMPTS; attempt++) {
+      if (lostRace) {
+        backoff(attempt);
+      }
+
+      var entry = ldap.getEntry(dn, attributeName);
+      int nextID = entry.getAttributeValueAsInteger(attributeName);
+
+      try {
+        ldap.modify(
+          dn,
+          new Modification(DELETE, attributeName, String.valueOf(nextID)),
+          new Modification(ADD, attributeName, String.valueOf(nextID + count)));
+      } catch (LDAPException e) {
+        if (e.getResultCode() == ResultCode.NO_SUCH_ATTRIBUTE) {
+          lostRace = true;
+          continue;
+        }
+        throw e;
+      }
+
+      // the numbers are ours now, but somebody may have used them without going through the counter
+      lostRace = false;
+      if (!isPosixIdNumberInUse(attributeName, nextID, nextID + count)) {
+        return nextID;
+      }
+    }
+
+    throw new LDAPException(ResultCode.BUSY, "Unable to reserve a free " + attributeName + " after " + MAX_ID_ATTEMPTS + " attempts, the counter may be behind the numbers in use");
+  }
+
+  private static void backoff(int attempt) throws LDAPException {
+    long maxDelay = Math.min(ID_BACKOFF_MAX_MILLIS, ID_BACKOFF_BASE_MILLIS << attempt);
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LDAPException(ResultCode.USER_CANCELED, "Interrupted while waiting to retry", e);
+    }
+  }
+
+  // checks whether any number in [start, end) is already used by an account or group
+  public boolean isPosixIdNumberInUse(String attributeName, int start, int end) throws LDAPSearchException {
+    return exists(
+      ManagerLDAP.LDAP_BASE,
+      Filter.createANDFilter(
+        idNumberHolderFilter(attributeName),
+        Filter.createGreaterOrEqualFilter(attributeName, String.valueOf(start)),
+        Filter.createLessOrEqualFilter(attributeName, String.valueOf(end - 1))));
+  }
+
+  // the entries a number counts as used by: accounts for uidNumber; groups and, as their primary group, accounts
+  // for gidNumber, since a new group with the gidNumber of a deleted group would silently get its users as members
+  static Filter idNumberHolderFilter(String attributeName) {
+    if (attributeName.equals("uidNumber")) {
+      return Filter.createEqualityFilter("objectClass", "posixAccount");
+    }
+    return Filter.createORFilter(
+      Filter.createEqualityFilter("objectClass", "posixGroup"),
+      Filter.createEqualityFilter("objectClass", "posixAccount"));
+  }
 
-    ldap.modify(
-      dn,
-      new Modification(DELETE, attributeName, String.valueOf(nextID)),
-      new Modification(ADD, attributeName, String.valueOf(nextID + 1)));
+  // resets the counter from end to start if nobody has reserved numbers in the meantime
+  public boolean returnPosixIdNumbers(String dn, String attributeName, int start, int end) throws LDAPException {
+    return setPosixIdCounter(dn, attributeName, end, start);
+  }
 
-    return nextID;
+  public int getPosixIdCounter(String dn, String attributeName) throws LDAPException {
+    Entry entry = ldap.getEntry(dn, attributeName);
+    if (entry == null || entry.getAttributeValueAsInteger(attributeName) == null) {
+      throw new LDAPException(ResultCode.NO_SUCH_OBJECT, "No " + attributeName + " counter at " + dn);
+    }
+    return entry.getAttributeValueAsInteger(attributeName);
+  }
+
+  // moves the counter from expected to next, returns false if it does not hold expected anymore
+  public boolean setPosixIdCounter(String dn, String attributeName, int expected, int next) throws LDAPException {
+    try {
+      ldap.modify(
+        dn,
+        new Modification(DELETE, attributeName, String.valueOf(expected)),
+        new Modification(ADD, attributeName, String.valueOf(next)));
+      return true;
+    } catch (LDAPException e) {
+      if (e.getResultCode() == ResultCode.NO_SUCH_ATTRIBUTE) {
+        return false;
+      }
+      throw e;
+    }
   }
 
   public boolean isUidUnique(String uid) throws LDAPSearchException {
+    if (entryCache != null && entryCache.contains(userCacheKey(uid))) {
+      return true;
+    }
+
+    return exists(USERS_BASE, userFilter(uid));
+  }
+
+  public Set<String> findExistingUids(Collection<String> uids) throws LDAPSearchException {
+    List<Filter> uidFilters = new ArrayList<>(uids.size());
+    for (String uid : uids) {
+      uidFilters.add(Filter.createEqualityFilter("uid", uid));
+    }
+
+    Set<String> existing = new HashSet<>();
+    if (uidFilters.isEmpty()) {
+      return existing;
+    }
+
     var res =
       ldap.search(
         ManagerLDAP.USERS_BASE,
         SUB,
-        Filter.createANDFilter(
-          Filter.createEqualityFilter("objectClass", "account"),
-          Filter.createEqualityFilter("objectClass", "posixAccount"),
-          Filter.createEqualityFilter("uid", uid)));
-    return res.getEntryCount() > 0;
+        Filter.createANDFilter(USER_FILTER, Filter.createORFilter(uidFilters)),
+        "uid");
+    for (SearchResultEntry entry : res.getSearchEntries()) {
+      for (String uid : entry.getAttributeValues("uid")) {
+        existing.add(uid.toLowerCase());
+      }
+    }
+    return existing;
+  }
+
+  public void forEachUser(int pageSize, Consumer<SearchResultEntry> handler, String... attributes) throws LDAPException {
+    forEachUser(pageSize, null, handler, attributes);
+  }
+
+  // filter is combined with the user filter, null matches all users
+  public void forEachUser(int pageSize, Filter filter, Consumer<SearchResultEntry> handler, String... attributes) throws LDAPException {
+    forEachEntry(USERS_BASE, filter == null ? USER_FILTER : Filter.createANDFilter(USER_FILTER, filter), pageSize, handler, attributes);
+  }
+
+  // the members of the group that are users matching filter (null for all), looked up by the uid of their RDN in
+  // searches for batchSize of them at a time instead of going through all users. Only the member values of the group
+  // entry are held in memory, which has to be read as a whole anyway.
+  public void forEachMember(String gid, int batchSize, Filter filter, Consumer<SearchResultEntry> handler, String... attributes) throws LDAPException {
+    String[] memberValues = getGroupEntry(gid, "member").getAttributeValues("member");
+    if (memberValues == null) {
+      return;
+    }
+
+    Set<DN> batch = new HashSet<>();
+    List<Filter> uidFilters = new ArrayList<>(batchSize);
+    for (int i = 0; i < memberValues.length; i++) {
+      DN member = new DN(memberValues[i]);
+      String[] names = member.getRDN() != null ? member.getRDN().getAttributeNames() : new String[0];
+      // user entries are named by their uid, other members can't be users
+      if (names.length == 1 && names[0].equalsIgnoreCase("uid")) {
+        batch.add(member);
+        uidFilters.add(Filter.createEqualityFilter("uid", member.getRDN().getAttributeValues()[0]));
+      }
+      if (uidFilters.size() == batchSize || (i == memberValues.length - 1 && !uidFilters.isEmpty())) {
+        Filter users = Filter.createANDFilter(USER_FILTER, Filter.createORFilter(uidFilters));
+        var res = ldap.search(USERS_BASE, SUB, filter == null ? users : Filter.createANDFilter(users, filter), attributes);
+        for (SearchResultEntry entry : res.getSearchEntries()) {
+          if (batch.contains(entry.getParsedDN())) {
+            handler.accept(entry);
+          }
+        }
+        batch.clear();
+        uidFilters.clear();
+      }
+    }
+  }
+
+  public void forEachGroup(int pageSize, Consumer<SearchResultEntry> handler, String... attributes) throws LDAPException {
+    forEachGroup(pageSize, null, handler, attributes);
+  }
+
+  // filter is combined with the group filter, null matches all groups including user groups
+  public void forEachGroup(int pageSize, Filter filter, Consumer<SearchResultEntry> handler, String... attributes) throws LDAPException {
+    forEachEntry(GROUPS_BASE, filter == null ? GROUP_FILTER : Filter.createANDFilter(GROUP_FILTER, filter), pageSize, handler, attributes);
+  }
+
+  // streams all matching entries to the handler page by page (simple paged results), so that neither
+  // the server nor we have to hold the whole result set
+  public void forEachEntry(String base, Filter filter, int pageSize, Consumer<SearchResultEntry> handler, String... attributes)
+    throws LDAPException {
+    SearchResultListener listener = new SearchResultListener() {
+      @Override
+      public void searchEntryReturned(SearchResultEntry searchEntry) {
+        handler.accept(searchEntry);
+      }
+
+      @Override
+      public void searchReferenceReturned(SearchResultReference searchReference) {
+      }
+    };
+
+    // servers tie the cookie to the connection, so all pages are fetched on one connection even from a pool
+    LDAPConnection conn = LDAPConnections.checkoutForReads(ldap);
+    try {
+      LDAPInterface pages = conn != null ? LDAPStats.instrumentLike(ldap, conn) : ldap;
+      ASN1OctetString cookie = null;
+      do {
+        var request = new SearchRequest(listener, base, SUB, filter, attributes);
+        request.addControl(new SimplePagedResultsControl(pageSize, cookie));
+        var result = pages.search(request);
+
+        var response = SimplePagedResultsControl.get(result);
+        cookie = response != null && response.moreResultsToReturn() ? response.getCookie() : null;
+      } while (cookie != null);
+    } finally {
+      LDAPConnections.release(ldap, conn);
+    }
+  }
+
+  // maps the lower-cased uids of existing users to their DNs, unknown uids are missing from the result
+  public Map<String, String> resolveUserDNs(Collection<String> uids) throws LDAPSearchException {
+    List<Filter> uidFilters = new ArrayList<>(uids.size());
+    for (String uid : uids) {
+      uidFilters.add(Filter.createEqualityFilter("uid", uid));
+    }
+
+    Map<String, String> dns = new HashMap<>();
+    if (uidFilters.isEmpty()) {
+      return dns;
+    }
+
+    var res = ldap.search(ManagerLDAP.USERS_BASE, SUB, Filter.createANDFilter(USER_FILTER, Filter.createORFilter(uidFilters)), "uid");
+    for (SearchResultEntry entry : res.getSearchEntries()) {
+      for (String uid : entry.getAttributeValues("uid")) {
+        dns.put(uid.toLowerCase(), entry.getDN());
+      }
+    }
+    return dns;
+  }
+
+  public Set<String> findExistingGids(Collection<String> gids) throws LDAPSearchException {
+    List<Filter> gidFilters = new ArrayList<>(gids.size());
+    for (String gid : gids) {
+      gidFilters.add(Filter.createEqualityFilter("cn", gid));
+    }
+
+    Set<String> existing = new HashSet<>();
+    if (gidFilters.isEmpty()) {
+      return existing;
+    }
+
+    var res =
+      ldap.search(
+        ManagerLDAP.GROUPS_BASE,
+        SUB,
+        Filter.createANDFilter(GROUP_FILTER, Filter.createORFilter(gidFilters)),
+        "cn");
+    for (SearchResultEntry entry : res.getSearchEntries()) {
+      for (String gid : entry.getAttributeValues("cn")) {
+        existing.add(gid.toLowerCase());
+      }
+    }
+    return existing;
   }
 
   public void checkPosixUidUnique(String uid) throws LDAPSearchException {
@@ -234,34 +996,127 @@ public class ManagerLDAP {
   }
 
   public boolean isGidUnique(String gid) throws LDAPSearchException {
-    var res =
-      ldap.search(
-        ManagerLDAP.GROUPS_BASE,
-        SUB,
-        Filter.createANDFilter(
-          Filter.createEqualityFilter("objectClass", "groupOfEntries"),
-          Filter.createEqualityFilter("objectClass", "posixGroup"),
-          Filter.createEqualityFilter("cn", gid)));
-    return res.getEntryCount() > 0;
+    if (entryCache != null && entryCache.contains(groupCacheKey(gid))) {
+      return true;
+    }
+
+    return exists(GROUPS_BASE, groupFilter(gid));
   }
 
   public void addSshKey(String uid, String key) throws LDAPException {
-    Entry userBefore = getUserEntry(uid);
-    Entry userAfter = userBefore.duplicate();
-    userAfter.addAttribute("sshPublicKey", key);
-    var mods = Entry.diff(userBefore, userAfter, true, true);
-    if (!mods.isEmpty()) {
-      ldap.modify(new ModifyRequest(userBefore.getDN(), mods));
-    }
+    addSshKeys(uid, List.of(key));
   }
 
   public void removeSshKey(String uid, String key) throws LDAPException {
-    Entry userBefore = getUserEntry(uid);
-    Entry userAfter = userBefore.duplicate();
-    userAfter.removeAttributeValue("sshPublicKey", key);
-    var mods = Entry.diff(userBefore, userAfter, true, true);
-    if (!mods.isEmpty()) {
-      ldap.modify(new ModifyRequest(userBefore.getDN(), mods));
+    removeSshKeys(uid, List.of(key));
+  }
+
+  // adds all keys the user does not have yet in a single modify and returns them;
+  // a key counts as present if its fingerprint matches, whatever the comment
+  public List<SshPublicKey> addSshKeys(String uid, Collection<String> keys) throws LDAPException {
+    List<SshPublicKey> parsed = SshPublicKey.parseAll(keys);
+    Entry user = getUserEntry(uid, "sshPublicKey");
+
+    List<SshPublicKey> added = missingSshKeys(user, parsed);
+    modifySshKeys(user, ADD, added.stream().map(SshPublicKey::toString).toList());
+    return added;
+  }
+
+  // removes all stored values matching one of the keys (see storedSshKeys) in a single modify and returns them
+  public List<String> removeSshKeys(String uid, Collection<String> keys) throws LDAPException {
+    Entry user = getUserEntry(uid, "sshPublicKey");
+
+    List<String> removed = storedSshKeys(user, keys);
+    modifySshKeys(user, DELETE, removed);
+    return removed;
+  }
+
+  // sets exactly the given keys (without duplicates) in a single modify, an empty collection removes all keys
+  public List<SshPublicKey> replaceSshKeys(String uid, Collection<String> keys) throws LDAPException {
+    List<SshPublicKey> distinct = new ArrayList<>(new LinkedHashSet<>(SshPublicKey.parseAll(keys)));
+    Entry user = getUserEntry(uid, SearchRequest.NO_ATTRIBUTES);
+    try {
+      ldap.modify(user.getDN(), new Modification(REPLACE, "sshPublicKey", distinct.stream().map(SshPublicKey::toString).toArray(String[]::new)));
+    } finally {
+      invalidate(user.getParsedDN());
+    }
+    return distinct;
+  }
+
+  // the keys the user does not have yet, without duplicates
+  static List<SshPublicKey> missingSshKeys(Entry user, List<SshPublicKey> keys) {
+    Set<SshPublicKey> present = new HashSet<>(parseStoredSshKeys(user).keySet());
+
+    List<SshPublicKey> missing = new ArrayList<>();
+    for (SshPublicKey key : keys) {
+      if (present.add(key)) {
+        missing.add(key);
+      }
+    }
+    return missing;
+  }
+
+  // the stored values matching one of the key lines: every copy of a valid key whatever its comment and options,
+  // and values equal to the line, so that certificates, unknown key types and junk can be removed as well
+  static List<String> storedSshKeys(Entry user, Collection<String> lines) {
+    Set<SshPublicKey> wanted = new HashSet<>();
+    Set<String> exact = new HashSet<>();
+    for (String line : lines) {
+      String trimmed = line.trim();
+      if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+        continue;
+      }
+      exact.add(trimmed);
+      try {
+        wanted.add(SshPublicKey.parse(trimmed));
+      } catch (IllegalArgumentException ignored) {
+      }
+    }
+
+    List<String> stored = new ArrayList<>();
+    String[] values = user.getAttributeValues("sshPublicKey");
+    if (values != null) {
+      for (String value : values) {
+        if (exact.contains(value.trim()) || wanted.contains(parseOrNull(value))) {
+          stored.add(value);
+        }
+      }
+    }
+    return stored;
+  }
+
+  // parsed key -> values as stored, a key may be stored several times with different comments or options;
+  // values that are not valid keys are skipped
+  private static Map<SshPublicKey, List<String>> parseStoredSshKeys(Entry user) {
+    Map<SshPublicKey, List<String>> keys = new LinkedHashMap<>();
+    String[] values = user.getAttributeValues("sshPublicKey");
+    if (values != null) {
+      for (String value : values) {
+        SshPublicKey key = parseOrNull(value);
+        if (key != null) {
+          keys.computeIfAbsent(key, k -> new ArrayList<>(1)).add(value);
+        }
+      }
+    }
+    return keys;
+  }
+
+  private static SshPublicKey parseOrNull(String value) {
+    try {
+      return SshPublicKey.parse(value);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private void modifySshKeys(Entry user, ModificationType modificationType, List<String> values) throws LDAPException {
+    if (values.isEmpty()) {
+      return;
+    }
+    try {
+      ldap.modify(user.getDN(), new Modification(modificationType, "sshPublicKey", values.toArray(new String[0])));
+    } finally {
+      invalidate(user.getParsedDN());
     }
   }
 }
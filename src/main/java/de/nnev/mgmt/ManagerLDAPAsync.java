@@ -0,0 +1,333 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.*;
+import com.unboundid.ldap.sdk.controls.PermissiveModifyRequestControl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.unboundid.ldap.sdk.ModificationType.ADD;
+import static com.unboundid.ldap.sdk.ModificationType.DELETE;
+import static com.unboundid.ldap.sdk.SearchScope.BASE;
+import static com.unboundid.ldap.sdk.SearchScope.SUB;
+
+// CompletableFuture based variants of the ManagerLDAP operations. Requests are sent over a single connection
+// without waiting for the responses to earlier ones, independent steps of an operation (e.g. the user and group
+// name checks) are in flight at the same time and the window of a PipelinedWriter bounds the outstanding requests.
+// Entries are looked up like ManagerLDAP does, in its entry cache first and then at their expected DNs.
+// Results are completed on the connection's reader thread, so callers must not block in dependent stages.
+public class ManagerLDAPAsync implements AutoCloseable {
+
+  // requests are mostly sent from callbacks, where the method that started the operation is no longer on the stack
+  private static final String STATS_METHOD = "async";
+
+  private final ManagerLDAP u;
+  private final PipelinedWriter writer;
+  // id numbers are allocated with the blocking compare-and-swap loop of ManagerLDAP
+  private final ExecutorService allocator = Executors.newVirtualThreadPerTaskExecutor();
+
+  public ManagerLDAPAsync(ManagerLDAP u, int window) throws LDAPException {
+    this.u = u;
+    this.writer = new PipelinedWriter(u.getLDAP(), window);
+    if (!writer.isPipelined()) {
+      writer.close();
+      throw new IllegalArgumentException("Asynchronous operations need a connection or connection pool");
+    }
+  }
+
+  public CompletableFuture<Entry> getUserEntry(String uid, String... attributes) {
+    return lookup("User", ManagerLDAP.userCacheKey(uid), List.of(ManagerLDAP.userDN(uid)),
+      ManagerLDAP.USERS_BASE, ManagerLDAP.USER_FILTER, ManagerLDAP.userFilter(uid), attributes);
+  }
+
+  public CompletableFuture<Entry> getGroupEntry(String gid, String... attributes) {
+    return lookup("Group", ManagerLDAP.groupCacheKey(gid),
+      List.of(ManagerLDAP.groupDN(gid, ManagerLDAP.GroupType.RegularGroup), ManagerLDAP.groupDN(gid, ManagerLDAP.GroupType.UserGroup)),
+      ManagerLDAP.GROUPS_BASE, ManagerLDAP.GROUP_FILTER, ManagerLDAP.groupFilter(gid), attributes);
+  }
+
+  public CompletableFuture<Integer> addUser(String uid, String name, int gidNumber, String shell, String home) {
+    try {
+      ManagerLDAP.checkPosixUid(uid);
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    return exists(ManagerLDAP.USERS_BASE, ManagerLDAP.userFilter(uid))
+      .thenCompose(userExists -> {
+        if (userExists) {
+          throw new RuntimeException("Already in use as user name");
+        }
+        return allocate(u::getNextUidNumber);
+      })
+      .thenCompose(uidNumber -> add(entry(() -> ManagerLDAP.createUserEntry(uid, name, uidNumber, gidNumber, shell, home)))
+        .thenApply(result -> uidNumber));
+  }
+
+  public CompletableFuture<Integer> addGroup(String gid, ManagerLDAP.GroupType groupType) {
+    try {
+      ManagerLDAP.checkPosixGid(gid);
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    return exists(ManagerLDAP.GROUPS_BASE, ManagerLDAP.groupFilter(gid))
+      .thenCompose(groupExists -> {
+        if (groupExists) {
+          throw new RuntimeException("Already in use as group name");
+        }
+        return allocate(u::getNextGidNumber);
+      })
+      .thenCompose(gidNumber -> add(entry(() -> ManagerLDAP.createGroupEntry(gid, groupType, gidNumber)))
+        .thenApply(result -> gidNumber));
+  }
+
+  public CompletableFuture<Integer> addUserWithUserGroup(String uid, String name, String shell) {
+    try {
+      ManagerLDAP.checkPosixUid(uid);
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    CompletableFuture<Void> unique =
+      exists(ManagerLDAP.USERS_BASE, ManagerLDAP.userFilter(uid))
+        .thenCombine(exists(ManagerLDAP.GROUPS_BASE, ManagerLDAP.groupFilter(uid)), (userExists, groupExists) -> {
+          if (userExists) {
+            throw new RuntimeException("Already in use as user name");
+          }
+          if (groupExists) {
+            throw new RuntimeException("Already in use as group name");
+          }
+          return null;
+        });
+
+    return unique
+      .thenCompose(v -> allocate(u::getNextUidNumber).thenCombine(allocate(u::getNextGidNumber), (uidNumber, gidNumber) -> new int[]{uidNumber, gidNumber}))
+      .thenCompose(numbers -> {
+        Entry group = entry(() -> ManagerLDAP.createGroupEntry(uid, ManagerLDAP.GroupType.UserGroup, numbers[1]));
+        Entry user = entry(() -> ManagerLDAP.createUserEntry(uid, name, numbers[0], numbers[1], shell, "/home/" + uid));
+
+        // the user entry does not depend on its group existing, so both adds go out back-to-back;
+        // if only one of them succeeds it is deleted again
+        CompletableFuture<Throwable> groupAdded = add(group).handle((result, e) -> e);
+        CompletableFuture<Throwable> userAdded = add(user).handle((result, e) -> e);
+        return groupAdded.thenCombine(userAdded, (groupError, userError) -> new Throwable[]{groupError, userError})
+          .thenCompose(errors -> {
+            if (errors[0] == null && errors[1] == null) {
+              return CompletableFuture.completedFuture(numbers[0]);
+            }
+
+            CompletableFuture<?> cleanup = CompletableFuture.completedFuture(null);
+            if (errors[0] == null) {
+              cleanup = delete(group.getDN());
+            } else if (errors[1] == null) {
+              cleanup = delete(user.getDN());
+            }
+            Throwable error = errors[0] != null ? errors[0] : errors[1];
+            return cleanup.<Integer>handle((result, e) -> {
+              throw error instanceof CompletionException c ? c : new CompletionException(error);
+            });
+          });
+      });
+  }
+
+  public CompletableFuture<Void> addUserToGroup(String uid, String gid) {
+    return changeMembership(uid, gid, ADD);
+  }
+
+  public CompletableFuture<Void> removeUserFromGroup(String uid, String gid) {
+    return changeMembership(uid, gid, DELETE);
+  }
+
+  // both DNs are looked up at the same time, then only the single member value is sent
+  private CompletableFuture<Void> changeMembership(String uid, String gid, ModificationType modificationType) {
+    return getUserEntry(uid, SearchRequest.NO_ATTRIBUTES)
+      .thenCombine(getGroupEntry(gid, SearchRequest.NO_ATTRIBUTES), (user, group) -> {
+        var request = new ModifyRequest(group.getDN(), new Modification(modificationType, "member", user.getDN()));
+        request.addControl(new PermissiveModifyRequestControl());
+        return request;
+      })
+      .thenCompose(request -> modify(request)
+        .handle((result, e) -> {
+          u.invalidate(parsedDN(request.getDN()));
+          // a server ignoring the control reports the member as already present or missing
+          ResultCode resultCode = resultCode(e);
+          if (e != null && resultCode != ResultCode.ATTRIBUTE_OR_VALUE_EXISTS && resultCode != ResultCode.NO_SUCH_ATTRIBUTE) {
+            throw e instanceof CompletionException c ? c : new CompletionException(e);
+          }
+          return null;
+        }));
+  }
+
+  // see ManagerLDAP.addSshKeys
+  public CompletableFuture<List<SshPublicKey>> addSshKeys(String uid, Collection<String> keys) {
+    List<SshPublicKey> parsed;
+    try {
+      parsed = SshPublicKey.parseAll(keys);
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    return getUserEntry(uid, "sshPublicKey").thenCompose(user -> {
+      List<SshPublicKey> added = ManagerLDAP.missingSshKeys(user, parsed);
+      return modifySshKeys(user, ADD, added.stream().map(SshPublicKey::toString).toList()).thenApply(v -> added);
+    });
+  }
+
+  // see ManagerLDAP.removeSshKeys
+  public CompletableFuture<List<String>> removeSshKeys(String uid, Collection<String> keys) {
+    return getUserEntry(uid, "sshPublicKey").thenCompose(user -> {
+      List<String> removed = ManagerLDAP.storedSshKeys(user, keys);
+      return modifySshKeys(user, DELETE, removed).thenApply(v -> removed);
+    });
+  }
+
+  private CompletableFuture<Void> modifySshKeys(Entry user, ModificationType modificationType, List<String> values) {
+    if (values.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return modify(new ModifyRequest(user.getDN(), new Modification(modificationType, "sshPublicKey", values.toArray(new String[0]))))
+      .whenComplete((result, e) -> u.invalidate(parsedDN(user.getDN())))
+      .thenApply(result -> null);
+  }
+
+  // waits until all requests sent so far have been answered
+  public void flush() {
+    writer.flush();
+  }
+
+  @Override
+  public void close() {
+    writer.flush();
+    allocator.shutdown();
+    writer.close();
+  }
+
+  // see ManagerLDAP.lookup, the expected DNs are read at the same time
+  private CompletableFuture<Entry> lookup(String kind, String cacheKey, List<DN> expectedDNs, String base, Filter objectClassFilter, Filter filter, String... attributes) {
+    Entry cached = u.getCached(cacheKey);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(ManagerLDAP.project(cached, attributes));
+    }
+
+    boolean caching = u.getEntryCache() != null;
+    String[] fetched = caching ? new String[0] : attributes;
+    List<CompletableFuture<List<SearchResultEntry>>> reads = expectedDNs.stream()
+      .map(dn -> search(dn.toString(), BASE, objectClassFilter, 1, fetched))
+      .toList();
+    return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0]))
+      .thenCompose(v -> reads.stream()
+        .map(CompletableFuture::join)
+        .filter(entries -> !entries.isEmpty())
+        .findFirst()
+        .map(entries -> CompletableFuture.<Entry>completedFuture(entries.get(0)))
+        .orElseGet(() -> searchOne(kind, base, filter, fetched)))
+      .thenApply(entry -> caching ? ManagerLDAP.project(u.putCached(cacheKey, entry), attributes) : entry);
+  }
+
+  private CompletableFuture<Entry> searchOne(String kind, String base, Filter filter, String... attributes) {
+    return search(base, SUB, filter, 2, attributes).thenApply(entries -> switch (entries.size()) {
+      case 0 -> throw new RuntimeException(kind + " not found");
+      case 1 -> entries.get(0);
+      default -> throw new RuntimeException(kind + " not unique / general error");
+    });
+  }
+
+  private CompletableFuture<Boolean> exists(String base, Filter filter) {
+    return search(base, SUB, filter, 1, SearchRequest.NO_ATTRIBUTES).thenApply(entries -> !entries.isEmpty());
+  }
+
+  // hitting the size limit is not an error, the entries returned up to it are the result; neither is reading an entry
+  // that does not exist
+  private CompletableFuture<List<SearchResultEntry>> search(String base, SearchScope scope, Filter filter, int sizeLimit, String... attributes) {
+    return writer.search(STATS_METHOD, (conn, timer, result) -> {
+      List<SearchResultEntry> entries = new ArrayList<>();
+      var request = new SearchRequest(new AsyncSearchResultListener() {
+        @Override
+        public void searchEntryReturned(SearchResultEntry searchEntry) {
+          entries.add(searchEntry);
+        }
+
+        @Override
+        public void searchReferenceReturned(SearchResultReference searchReference) {
+        }
+
+        @Override
+        public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult) {
+          timer.stop(searchResult);
+          ResultCode resultCode = searchResult.getResultCode();
+          if (resultCode == ResultCode.SUCCESS || resultCode == ResultCode.SIZE_LIMIT_EXCEEDED
+            || scope == BASE && resultCode == ResultCode.NO_SUCH_OBJECT) {
+            result.complete(entries);
+          } else {
+            result.completeExceptionally(new LDAPSearchException(searchResult));
+          }
+        }
+      }, base, scope, filter, attributes);
+      request.setSizeLimit(sizeLimit);
+      conn.asyncSearch(request);
+    });
+  }
+
+  private CompletableFuture<LDAPResult> add(Entry entry) {
+    return succeeded(writer.submit(STATS_METHOD, "add", (conn, listener) -> conn.asyncAdd(new AddRequest(entry), listener)));
+  }
+
+  private CompletableFuture<LDAPResult> modify(ModifyRequest request) {
+    return succeeded(writer.submit(STATS_METHOD, "modify", (conn, listener) -> conn.asyncModify(request, listener)));
+  }
+
+  private CompletableFuture<LDAPResult> delete(String dn) {
+    return succeeded(writer.submit(STATS_METHOD, "delete", (conn, listener) -> conn.asyncDelete(new DeleteRequest(dn), listener)));
+  }
+
+  // the writer completes with unsuccessful results as well
+  private static CompletableFuture<LDAPResult> succeeded(CompletableFuture<LDAPResult> result) {
+    return result.thenApply(ldapResult -> {
+      if (ldapResult.getResultCode() != ResultCode.SUCCESS) {
+        throw new CompletionException(new LDAPException(ldapResult));
+      }
+      return ldapResult;
+    });
+  }
+
+  private interface Call<T> {
+    T call() throws LDAPException;
+  }
+
+  private <T> CompletableFuture<T> allocate(Call<T> call) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return call.call();
+      } catch (LDAPException e) {
+        throw new CompletionException(e);
+      }
+    }, allocator);
+  }
+
+  private static Entry entry(Call<Entry> call) {
+    try {
+      return call.call();
+    } catch (LDAPException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  private static DN parsedDN(String dn) {
+    try {
+      return new DN(dn);
+    } catch (LDAPException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  private static ResultCode resultCode(Throwable e) {
+    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+    return cause instanceof LDAPException l ? l.getResultCode() : null;
+  }
+}
@@ -0,0 +1,194 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.*;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+// sends requests back-to-back over a single connection and keeps at most window of them in flight; falls back to
+// synchronous requests if the interface does not provide a connection. add, modify and delete wait for a free slot,
+// submit queues the request instead, which is what callers on the connection's reader thread (ManagerLDAPAsync) need.
+final class PipelinedWriter implements AutoCloseable {
+
+  private final LDAPInterface ldap;
+  private final LDAPConnection conn;
+  private final boolean checkedOut;
+  private final int window;
+
+  private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+  private int inFlight;
+
+  PipelinedWriter(LDAPInterface ldap, int window) throws LDAPException {
+    this(checkWindow(window), ldap, LDAPConnections.checkout(ldap), true);
+  }
+
+  // on a connection the caller checked out of ldap and keeps using afterwards (transactions)
+  PipelinedWriter(LDAPInterface ldap, LDAPConnection conn, int window) {
+    this(checkWindow(window), ldap, conn, false);
+  }
+
+  private PipelinedWriter(int window, LDAPInterface ldap, LDAPConnection conn, boolean checkedOut) {
+    this.ldap = ldap;
+    this.conn = conn;
+    this.checkedOut = checkedOut;
+    this.window = window;
+  }
+
+  private static int checkWindow(int window) {
+    if (window < 1) {
+      throw new IllegalArgumentException("window must be positive");
+    }
+    return window;
+  }
+
+  boolean isPipelined() {
+    return conn != null;
+  }
+
+  Future<LDAPResult> add(AddRequest request) {
+    if (conn == null) {
+      return completed(() -> ldap.add(request));
+    }
+    awaitBelow(window);
+    return submit(null, "add", (conn, listener) -> conn.asyncAdd(request, listener));
+  }
+
+  Future<LDAPResult> modify(ModifyRequest request) {
+    if (conn == null) {
+      return completed(() -> ldap.modify(request));
+    }
+    awaitBelow(window);
+    return submit(null, "modify", (conn, listener) -> conn.asyncModify(request, listener));
+  }
+
+  Future<LDAPResult> delete(DeleteRequest request) {
+    if (conn == null) {
+      return completed(() -> ldap.delete(request));
+    }
+    awaitBelow(window);
+    return submit(null, "delete", (conn, listener) -> conn.asyncDelete(request, listener));
+  }
+
+  interface AsyncRequest {
+    void send(LDAPConnection conn, AsyncResultListener listener) throws LDAPException;
+  }
+
+  interface AsyncSearch {
+    void send(LDAPConnection conn, LDAPStats.Timer timer, CompletableFuture<List<SearchResultEntry>> result) throws LDAPException;
+  }
+
+  // completes with the result of the request, unsuccessful ones included, on the reader thread. Requests on the
+  // connection bypass the statistics of ldap, so they are timed by their listener; a null method is derived from
+  // the stack, which only works for requests that are not queued
+  CompletableFuture<LDAPResult> submit(String method, String operation, AsyncRequest request) {
+    return this.<LDAPResult>enqueue(method, operation, (conn, timer, result) ->
+      request.send(conn, (requestID, ldapResult) -> {
+        timer.stop(ldapResult);
+        result.complete(ldapResult);
+      }));
+  }
+
+  // searches complete through their own listener, which has to stop the timer
+  CompletableFuture<List<SearchResultEntry>> search(String method, AsyncSearch search) {
+    return enqueue(method, "search", search::send);
+  }
+
+  private interface Sender<T> {
+    void send(LDAPConnection conn, LDAPStats.Timer timer, CompletableFuture<T> result) throws LDAPException;
+  }
+
+  // sends the request right away if the window allows it, otherwise once an earlier request is answered
+  private <T> CompletableFuture<T> enqueue(String method, String operation, Sender<T> sender) {
+    if (conn == null) {
+      throw new IllegalStateException("Asynchronous operations need a connection or connection pool");
+    }
+    var result = new CompletableFuture<T>();
+    result.whenComplete((r, e) -> released());
+    Runnable send = () -> {
+      var timer = LDAPStats.start(ldap, method, operation);
+      try {
+        sender.send(conn, timer, result);
+      } catch (LDAPException e) {
+        timer.stop(e);
+        result.completeExceptionally(e);
+      }
+    };
+
+    synchronized (this) {
+      if (inFlight >= window) {
+        pending.add(send);
+        return result;
+      }
+      inFlight++;
+    }
+    send.run();
+    return result;
+  }
+
+  private void released() {
+    Runnable next;
+    synchronized (this) {
+      next = pending.poll();
+      if (next == null) {
+        inFlight--;
+        notifyAll();
+        return;
+      }
+    }
+    // the slot of the answered request goes to the next one
+    next.run();
+  }
+
+  // waits until all requests sent or queued so far have been answered
+  void flush() {
+    awaitBelow(1);
+  }
+
+  private synchronized void awaitBelow(int limit) {
+    boolean interrupted = false;
+    while (inFlight >= limit) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() {
+    flush();
+    if (checkedOut) {
+      LDAPConnections.release(ldap, conn);
+    }
+  }
+
+  static LDAPResult await(Future<LDAPResult> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new LDAPResult(-1, ResultCode.USER_CANCELED);
+    } catch (ExecutionException e) {
+      return new LDAPResult(-1, ResultCode.LOCAL_ERROR, String.valueOf(e.getCause()), null, null, null);
+    }
+  }
+
+  private interface Request {
+    LDAPResult send() throws LDAPException;
+  }
+
+  private static Future<LDAPResult> completed(Request request) {
+    try {
+      return CompletableFuture.completedFuture(request.send());
+    } catch (LDAPException e) {
+      return CompletableFuture.completedFuture(e.toLDAPResult());
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPInterface;
+import com.unboundid.ldap.sdk.ResultCode;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// an LDAPInterface sending writes to the primary and reads to the healthy replica with the fewest requests in flight.
+// For readAfterWrite after any write all reads go to the primary, so that lookups following a write (uniqueness
+// checks, counter retries, ...) see it even if the replicas lag behind. A replica failing with a connection error is
+// skipped until a health check finds it working again, the read is retried on the primary.
+//
+// Paged searches must not be sent through ldap(), the pages could end up on different servers and a cookie on a
+// server that never issued it; checkoutForReads() hands out one connection for the whole sweep instead.
+public final class ReplicaRouter implements AutoCloseable {
+
+  public static final Duration DEFAULT_HEALTH_CHECK_INTERVAL = Duration.ofSeconds(10);
+
+  private static final Set<String> READS = Set.of("getEntry", "search", "searchForEntry", "getRootDSE", "getSchema", "compare");
+
+  private static final class Replica {
+    final LDAPInterface ldap;
+    final AtomicInteger inFlight = new AtomicInteger();
+    volatile boolean healthy = true;
+
+    Replica(LDAPInterface ldap) {
+      this.ldap = ldap;
+    }
+  }
+
+  private final LDAPInterface primary;
+  private final Replica[] replicas;
+  private final long readAfterWriteNanos;
+  private final AtomicInteger rotation = new AtomicInteger();
+
+  // reads go to the primary until System.nanoTime() passes this
+  private volatile long primaryReadsUntil = System.nanoTime();
+
+  private final LongAdder replicaReads = new LongAdder();
+  private final LongAdder primaryReads = new LongAdder();
+  private final LongAdder failovers = new LongAdder();
+
+  // connections handed out by checkoutForReads() -> the replica they belong to
+  private final Map<LDAPConnection, Replica> checkedOut = new ConcurrentHashMap<>();
+
+  private ScheduledExecutorService healthChecks;
+
+  public ReplicaRouter(LDAPInterface primary, List<? extends LDAPInterface> replicas, Duration readAfterWrite) {
+    this.primary = primary;
+    this.replicas = replicas.stream().map(Replica::new).toArray(Replica[]::new);
+    this.readAfterWriteNanos = readAfterWrite.toNanos();
+  }
+
+  public LDAPInterface ldap() {
+    return (LDAPInterface) Proxy.newProxyInstance(
+      LDAPInterface.class.getClassLoader(),
+      new Class<?>[]{LDAPInterface.class},
+      new Handler());
+  }
+
+  // the primary behind a routing interface for operations that need a connection (async requests, transactions, ...)
+  static LDAPInterface unwrap(LDAPInterface ldap) {
+    if (Proxy.isProxyClass(ldap.getClass()) && Proxy.getInvocationHandler(ldap) instanceof Handler handler) {
+      return handler.primary();
+    }
+    return ldap;
+  }
+
+  // the router behind a routing interface, null for any other interface
+  static ReplicaRouter of(LDAPInterface ldap) {
+    if (Proxy.isProxyClass(ldap.getClass()) && Proxy.getInvocationHandler(ldap) instanceof Handler handler) {
+      return handler.router();
+    }
+    return null;
+  }
+
+  private final class Handler implements InvocationHandler {
+
+    LDAPInterface primary() {
+      return primary;
+    }
+
+    ReplicaRouter router() {
+      return ReplicaRouter.this;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        return method.invoke(this, args);
+      }
+
+      if (!READS.contains(method.getName())) {
+        try {
+          return call(primary, method, args);
+        } finally {
+          // also after failed writes: a lost compare-and-swap is retried with a fresh read
+          primaryReadsUntil = System.nanoTime() + readAfterWriteNanos;
+        }
+      }
+
+      Replica replica = select();
+      if (replica == null) {
+        primaryReads.increment();
+        return call(primary, method, args);
+      }
+
+      replica.inFlight.incrementAndGet();
+      try {
+        Object result = call(replica.ldap, method, args);
+        replicaReads.increment();
+        return result;
+      } catch (LDAPException e) {
+        if (ResultCode.isConnectionUsable(e.getResultCode())) {
+          throw e;
+        }
+        replica.healthy = false;
+        failovers.increment();
+        primaryReads.increment();
+        return call(primary, method, args);
+      } finally {
+        replica.inFlight.decrementAndGet();
+      }
+    }
+  }
+
+  private static Object call(LDAPInterface ldap, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(ldap, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  // null if the read has to go to the primary; the rotating start spreads reads over equally loaded replicas
+  private Replica select() {
+    if (System.nanoTime() - primaryReadsUntil < 0 || replicas.length == 0) {
+      return null;
+    }
+
+    int start = Math.floorMod(rotation.getAndIncrement(), replicas.length);
+    Replica best = null;
+    for (int i = 0; i < replicas.length; i++) {
+      Replica replica = replicas[(start + i) % replicas.length];
+      if (replica.healthy && (best == null || replica.inFlight.get() < best.inFlight.get())) {
+        best = replica;
+      }
+    }
+    return best;
+  }
+
+  // a connection for a series of reads that has to stay on one server, like the pages of a paged search: to the
+  // replica a single read would go to, or to the primary. A replica failing to hand out a connection is marked
+  // unhealthy, but once a connection is out, its failures are the caller's.
+  LDAPConnection checkoutForReads() throws LDAPException {
+    Replica replica = select();
+    if (replica != null) {
+      try {
+        LDAPConnection conn = LDAPConnections.checkout(replica.ldap);
+        if (conn != null) {
+          replica.inFlight.incrementAndGet();
+          checkedOut.put(conn, replica);
+          replicaReads.increment();
+          return conn;
+        }
+      } catch (LDAPException e) {
+        if (ResultCode.isConnectionUsable(e.getResultCode())) {
+          throw e;
+        }
+        replica.healthy = false;
+        failovers.increment();
+      }
+    }
+    primaryReads.increment();
+    return LDAPConnections.checkout(primary);
+  }
+
+  // gives back a connection of checkoutForReads() or of LDAPConnections.checkout(), which hands out the primary's
+  void release(LDAPConnection conn) {
+    Replica replica = checkedOut.remove(conn);
+    if (replica != null) {
+      replica.inFlight.decrementAndGet();
+      LDAPConnections.release(replica.ldap, conn);
+    } else {
+      LDAPConnections.release(primary, conn);
+    }
+  }
+
+  public synchronized void startHealthChecks(Duration interval) {
+    if (healthChecks != null) {
+      return;
+    }
+    healthChecks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "replica-health-check");
+      thread.setDaemon(true);
+      return thread;
+    });
+    healthChecks.scheduleWithFixedDelay(this::checkHealth, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  void checkHealth() {
+    for (Replica replica : replicas) {
+      try {
+        replica.healthy = replica.ldap.getRootDSE() != null;
+      } catch (LDAPException e) {
+        replica.healthy = false;
+      }
+    }
+  }
+
+  public int getHealthyReplicas() {
+    int healthy = 0;
+    for (Replica replica : replicas) {
+      if (replica.healthy) {
+        healthy++;
+      }
+    }
+    return healthy;
+  }
+
+  public long getReplicaReads() {
+    return replicaReads.sum();
+  }
+
+  public long getPrimaryReads() {
+    return primaryReads.sum();
+  }
+
+  public long getFailovers() {
+    return failovers.sum();
+  }
+
+  // closes the replica connections, the primary belongs to the caller
+  @Override
+  public synchronized void close() {
+    if (healthChecks != null) {
+      healthChecks.shutdownNow();
+      healthChecks = null;
+    }
+    for (Replica replica : replicas) {
+      if (replica.ldap instanceof LDAPConnectionPool pool) {
+        pool.close();
+      } else if (replica.ldap instanceof LDAPConnection conn) {
+        conn.close();
+      }
+    }
+  }
+}
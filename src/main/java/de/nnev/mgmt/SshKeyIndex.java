@@ -0,0 +1,324 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.util.StaticUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+
+// memory-mapped on-disk index of the sshPublicKey values of all users, keyed by uid
+//
+// layout (big-endian):
+//   header:  int magic, int version, int slot count, int record count, long table offset, long last modified
+//   records: short uid length, uid (UTF-8), short key count, per key: int length, key (UTF-8)
+//   table:   slot count longs with the record offset of the uid hashed to the slot (linear probing), 0 = empty
+public final class SshKeyIndex implements Closeable {
+
+  public static final String DEFAULT_PATH = "/var/cache/ldap-user-mgmt/ssh-keys.idx";
+
+  private static final int MAGIC = 0x4e4e4b49;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+  private static final int PAGE_SIZE = 1000;
+  private static final String PERMISSIONS = "rw-r--r--";
+
+  public record RefreshResult(boolean full, int users, int changed) {
+  }
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int slotCount;
+  private final int recordCount;
+  private final long tableOffset;
+  private final long lastModified;
+
+  private SshKeyIndex(FileChannel channel) throws IOException {
+    this.channel = channel;
+    if (channel.size() > Integer.MAX_VALUE) {
+      throw new IOException("SSH key index too large");
+    }
+    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IOException("Not an SSH key index or unsupported version");
+    }
+    slotCount = buffer.getInt(8);
+    recordCount = buffer.getInt(12);
+    tableOffset = buffer.getLong(16);
+    lastModified = buffer.getLong(24);
+  }
+
+  public static SshKeyIndex open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new SshKeyIndex(channel);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public int size() {
+    return recordCount;
+  }
+
+  // newest modifyTimestamp (epoch millis) of the entries in the index
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  // returns null for users not in the index
+  public List<String> lookup(String uid) {
+    int offset = findRecord(uid.getBytes(StandardCharsets.UTF_8));
+    if (offset < 0) {
+      return null;
+    }
+
+    ByteBuffer record = buffer.duplicate();
+    record.position(offset);
+    record.position(offset + 2 + Short.toUnsignedInt(record.getShort()));
+    int keyCount = Short.toUnsignedInt(record.getShort());
+    List<String> keys = new ArrayList<>(keyCount);
+    for (int i = 0; i < keyCount; i++) {
+      byte[] key = new byte[record.getInt()];
+      record.get(key);
+      keys.add(new String(key, StandardCharsets.UTF_8));
+    }
+    return keys;
+  }
+
+  private int findRecord(byte[] uid) {
+    if (slotCount == 0) {
+      return -1;
+    }
+    int slot = hash(uid) & (slotCount - 1);
+    while (true) {
+      int offset = (int) buffer.getLong((int) tableOffset + slot * 8);
+      if (offset == 0) {
+        return -1;
+      }
+      if (uidMatches(offset, uid)) {
+        return offset;
+      }
+      slot = (slot + 1) & (slotCount - 1);
+    }
+  }
+
+  private boolean uidMatches(int offset, byte[] uid) {
+    if (Short.toUnsignedInt(buffer.getShort(offset)) != uid.length) {
+      return false;
+    }
+    for (int i = 0; i < uid.length; i++) {
+      if (buffer.get(offset + 2 + i) != uid[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // the complete encoded record, for copying unchanged users into a new index
+  private byte[] rawRecord(String uid) {
+    int offset = findRecord(uid.getBytes(StandardCharsets.UTF_8));
+    if (offset < 0) {
+      return null;
+    }
+    int end = offset + 2 + Short.toUnsignedInt(buffer.getShort(offset));
+    int keyCount = Short.toUnsignedInt(buffer.getShort(end));
+    end += 2;
+    for (int i = 0; i < keyCount; i++) {
+      end += 4 + buffer.getInt(end);
+    }
+    byte[] record = new byte[end - offset];
+    buffer.get(offset, record);
+    return record;
+  }
+
+  private static int hash(byte[] uid) {
+    int h = Arrays.hashCode(uid);
+    return h ^ (h >>> 16);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  // rebuilds the index at path; if an index exists and full is false, only users modified since its last
+  // refresh are fetched with their keys, all others are copied from the old index. The new index replaces the
+  // old one atomically, so concurrent lookups always see a complete index.
+  public static RefreshResult refresh(ManagerLDAP u, Path path, boolean full) throws IOException, LDAPException {
+    SshKeyIndex old = null;
+    if (!full && Files.exists(path)) {
+      try {
+        old = open(path);
+      } catch (IOException e) {
+        // rebuild a broken index from scratch
+      }
+    }
+
+    Path parent = path.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+    try (var writer = new Writer(temp); SshKeyIndex previous = old) {
+      RefreshResult result = previous == null ? writeAll(u, writer) : writeChanges(u, writer, previous);
+      writer.finish();
+      // createTempFile makes the file rw-------, but sshd runs the AuthorizedKeysCommand as an unprivileged user
+      if (Files.getFileStore(temp).supportsFileAttributeView(PosixFileAttributeView.class)) {
+        Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString(PERMISSIONS));
+      }
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return result;
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static RefreshResult writeAll(ManagerLDAP u, Writer writer) throws LDAPException {
+    u.forEachUser(PAGE_SIZE, entry -> writer.add(entry), "uid", "sshPublicKey", "modifyTimestamp");
+    return new RefreshResult(true, writer.recordCount, writer.recordCount);
+  }
+
+  private static RefreshResult writeChanges(ManagerLDAP u, Writer writer, SshKeyIndex old) throws LDAPException {
+    // the >= filter fetches entries modified in the same second as the last refresh again, which is cheap and
+    // avoids missing changes made right after it
+    Map<String, SearchResultEntry> changed = new HashMap<>();
+    u.forEachEntry(
+      ManagerLDAP.USERS_BASE,
+      Filter.createANDFilter(
+        Filter.createEqualityFilter("objectClass", "posixAccount"),
+        Filter.createGreaterOrEqualFilter("modifyTimestamp", StaticUtils.encodeGeneralizedTime(old.getLastModified()))),
+      PAGE_SIZE,
+      entry -> changed.put(entry.getAttributeValue("uid"), entry),
+      "uid", "sshPublicKey", "modifyTimestamp");
+
+    writer.lastModified = old.getLastModified();
+    List<String> missing = new ArrayList<>();
+    u.forEachUser(PAGE_SIZE, entry -> {
+      String uid = entry.getAttributeValue("uid");
+      SearchResultEntry changedEntry = changed.get(uid);
+      byte[] record = changedEntry == null ? old.rawRecord(uid) : null;
+      if (record != null) {
+        writer.addRaw(record);
+      } else if (changedEntry != null) {
+        writer.add(changedEntry);
+      } else {
+        missing.add(uid);
+      }
+    }, "uid");
+
+    // created after we looked for changes; fetched after the sweep, the listener must not block the connection
+    for (String uid : missing) {
+      writer.add(uid, u.getUserEntry(uid, "sshPublicKey").getAttributeValues("sshPublicKey"));
+    }
+
+    return new RefreshResult(false, writer.recordCount, changed.size() + missing.size());
+  }
+
+  private static final class Writer implements Closeable {
+    private final DataOutputStream out;
+    private final Path path;
+    private long position = HEADER_SIZE;
+    private int[] hashes = new int[1024];
+    private long[] offsets = new long[1024];
+    private int recordCount;
+    private long lastModified;
+
+    Writer(Path path) throws IOException {
+      this.path = path;
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+      out.write(new byte[HEADER_SIZE]);
+    }
+
+    void add(SearchResultEntry entry) {
+      Date modified = entry.getAttributeValueAsDate("modifyTimestamp");
+      if (modified != null) {
+        lastModified = Math.max(lastModified, modified.getTime());
+      }
+      add(entry.getAttributeValue("uid"), entry.getAttributeValues("sshPublicKey"));
+    }
+
+    void add(String uid, String[] keys) {
+      var record = new ByteArrayOutputStream();
+      var data = new DataOutputStream(record);
+      try {
+        byte[] uidBytes = uid.getBytes(StandardCharsets.UTF_8);
+        data.writeShort(uidBytes.length);
+        data.write(uidBytes);
+        data.writeShort(keys == null ? 0 : keys.length);
+        if (keys != null) {
+          for (String key : keys) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(keyBytes.length);
+            data.write(keyBytes);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      addRaw(record.toByteArray());
+    }
+
+    void addRaw(byte[] record) {
+      if (recordCount == hashes.length) {
+        hashes = Arrays.copyOf(hashes, recordCount * 2);
+        offsets = Arrays.copyOf(offsets, recordCount * 2);
+      }
+      int uidLength = ((record[0] & 0xff) << 8) | (record[1] & 0xff);
+      hashes[recordCount] = hash(Arrays.copyOfRange(record, 2, 2 + uidLength));
+      offsets[recordCount] = position;
+      recordCount++;
+
+      try {
+        out.write(record);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      position += record.length;
+    }
+
+    // appends the hash table and fills in the header
+    void finish() throws IOException {
+      int slotCount = Integer.highestOneBit(Math.max(1, recordCount * 2 - 1)) << 1;
+      long[] table = new long[slotCount];
+      for (int i = 0; i < recordCount; i++) {
+        int slot = hashes[i] & (slotCount - 1);
+        while (table[slot] != 0) {
+          slot = (slot + 1) & (slotCount - 1);
+        }
+        table[slot] = offsets[i];
+      }
+
+      long tableOffset = position;
+      for (long offset : table) {
+        out.writeLong(offset);
+      }
+      out.close();
+
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(slotCount).putInt(recordCount).putLong(tableOffset).putLong(lastModified);
+        header.flip();
+        channel.write(header, 0);
+        channel.force(true);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
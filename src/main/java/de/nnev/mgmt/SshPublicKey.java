@@ -0,0 +1,153 @@
+package de.nnev.mgmt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// an OpenSSH public key line ([options] type base64-blob [comment]); two keys are the same key if type
+// and blob match, options and comment are not part of the identity
+public final class SshPublicKey {
+
+  private static final Set<String> KEY_TYPES = Set.of(
+    "ssh-rsa",
+    "ssh-dss",
+    "ssh-ed25519",
+    "ecdsa-sha2-nistp256",
+    "ecdsa-sha2-nistp384",
+    "ecdsa-sha2-nistp521",
+    "sk-ssh-ed25519@openssh.com",
+    "sk-ecdsa-sha2-nistp256@openssh.com");
+
+  private final String options;
+  private final String type;
+  private final String blob;
+  private final String comment;
+  private final String fingerprint;
+
+  private SshPublicKey(String options, String type, String blob, String comment, String fingerprint) {
+    this.options = options;
+    this.type = type;
+    this.blob = blob;
+    this.comment = comment;
+    this.fingerprint = fingerprint;
+  }
+
+  public static SshPublicKey parse(String line) {
+    String trimmed = line.trim();
+    String options = "";
+    String[] tokens = trimmed.split("\\s+");
+    // like sshd, a line not starting with a key type starts with options
+    if (!KEY_TYPES.contains(tokens[0])) {
+      int end = optionsEnd(trimmed);
+      options = trimmed.substring(0, end);
+      tokens = trimmed.substring(end).trim().split("\\s+");
+    }
+    if (!KEY_TYPES.contains(tokens[0]) || tokens.length < 2) {
+      throw new IllegalArgumentException("Invalid SSH public key, unknown key type or missing key data: " + line);
+    }
+
+    String type = tokens[0];
+    String blob = tokens[1];
+    byte[] decoded;
+    try {
+      decoded = Base64.getDecoder().decode(blob);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid SSH public key, key data is not base64: " + line, e);
+    }
+    if (!type.equals(readEmbeddedType(decoded))) {
+      throw new IllegalArgumentException("Invalid SSH public key, key data does not match key type " + type + ": " + line);
+    }
+
+    String comment = String.join(" ", Arrays.copyOfRange(tokens, 2, tokens.length));
+    return new SshPublicKey(options, type, blob, comment, fingerprint(decoded));
+  }
+
+  // the options end at the first whitespace outside of double quotes, within which \" is a quote
+  private static int optionsEnd(String line) {
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted && c == '\\' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+        i++;
+      } else if (c == '"') {
+        quoted = !quoted;
+      } else if (!quoted && Character.isWhitespace(c)) {
+        return i;
+      }
+    }
+    return line.length();
+  }
+
+  // the blob starts with the key type as a length-prefixed string
+  private static String readEmbeddedType(byte[] decoded) {
+    if (decoded.length < 4) {
+      return null;
+    }
+    var buffer = ByteBuffer.wrap(decoded);
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      return null;
+    }
+    return new String(decoded, 4, length, StandardCharsets.US_ASCII);
+  }
+
+  // same format as ssh-keygen -l
+  private static String fingerprint(byte[] decoded) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(decoded);
+      return "SHA256:" + Base64.getEncoder().withoutPadding().encodeToString(digest);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // parses every non-empty line that is not a comment, so that a single invalid key rejects the whole input
+  public static List<SshPublicKey> parseAll(Collection<String> lines) {
+    List<SshPublicKey> keys = new ArrayList<>(lines.size());
+    for (String line : lines) {
+      String trimmed = line.trim();
+      if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+        keys.add(parse(trimmed));
+      }
+    }
+    return keys;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getComment() {
+    return comment;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof SshPublicKey other && fingerprint.equals(other.fingerprint);
+  }
+
+  @Override
+  public int hashCode() {
+    return fingerprint.hashCode();
+  }
+
+  // the normalized line as stored in the directory
+  @Override
+  public String toString() {
+    var sb = new StringBuilder();
+    if (!options.isEmpty()) {
+      sb.append(options).append(' ');
+    }
+    sb.append(type).append(' ').append(blob);
+    if (!comment.isEmpty()) {
+      sb.append(' ').append(comment);
+    }
+    return sb.toString();
+  }
+}
@@ -2,6 +2,8 @@ package de.nnev.mgmt;
 
 import com.unboundid.ldap.listener.InMemoryDirectoryServer;
 import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerSnapshot;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
 import com.unboundid.ldap.sdk.*;
 import com.unboundid.ldap.sdk.schema.Schema;
 import com.unboundid.ldif.LDIFException;
@@ -12,18 +14,55 @@ import java.io.InputStream;
 import java.util.Objects;
 
 public class TestInMemLdap {
+  // parsing the schema and importing the data takes much longer than restoring a snapshot of the result,
+  // so it is done once per JVM and every server starts from a copy
+  private static Schema schema;
+  private static InMemoryDirectoryServerSnapshot initialData;
+
   InMemoryDirectoryServer srv;
 
   public void startLdap() throws LDIFException, IOException, LDAPException {
+    srv = new InMemoryDirectoryServer(createConfig());
+    srv.restoreSnapshot(getInitialData());
+
+    srv.startListening();
+  }
+
+  // stops the server and starts it again with the same data on the same port, so that pools can reconnect
+  public void restartLdap() throws LDIFException, IOException, LDAPException {
+    int port = srv.getListenPort();
+    var snapshot = srv.createSnapshot();
+    srv.shutDown(true);
+
+    var config = createConfig();
+    config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", port));
+    srv = new InMemoryDirectoryServer(config);
+    srv.restoreSnapshot(snapshot);
+    srv.startListening();
+  }
+
+  private static synchronized InMemoryDirectoryServerConfig createConfig() throws LDIFException, IOException, LDAPException {
+    if (schema == null) {
+      InputStream schemaStream = Objects.requireNonNull(TestInMemLdap.class.getResourceAsStream("schema.ldif"));
+      schema = Schema.getSchema(schemaStream);
+    }
+
     InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=noname-ev,dc=de");
-    InputStream schemaStream = Objects.requireNonNull(TestInMemLdap.class.getResourceAsStream("schema.ldif"));
-    Schema schema = Schema.getSchema(schemaStream);
     config.setSchema(schema);
     config.setEnforceSingleStructuralObjectClass(true);
     config.setEnforceAttributeSyntaxCompliance(true);
     config.setGenerateOperationalAttributes(true);
-    srv = new InMemoryDirectoryServer(config);
+    // without indexes every lookup scans all entries, which hides how lookups scale on a real server
+    config.setEqualityIndexAttributes("objectClass", "uid", "cn", "member");
+    return config;
+  }
 
+  private static synchronized InMemoryDirectoryServerSnapshot getInitialData() throws LDIFException, IOException, LDAPException {
+    if (initialData != null) {
+      return initialData;
+    }
+
+    var srv = new InMemoryDirectoryServer(createConfig());
     srv.add("dc=noname-ev,dc=de", new Attribute("objectClass", "top", "dcObject", "organization"), new Attribute("dc", "noname-ev"), new Attribute("o", "noname-ev.de"));
     srv.add("ou=administration,dc=noname-ev,dc=de", new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "administration"));
     srv.add("ou=bindusers,ou=administration,dc=noname-ev,dc=de", new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "bindusers"));
@@ -38,7 +77,8 @@ public class TestInMemLdap {
 
     srv.importFromLDIF(false, new LDIFReader(dataStream));
 
-    srv.startListening();
+    initialData = srv.createSnapshot();
+    return initialData;
   }
 
   public void shutdownLdap() {
@@ -0,0 +1,334 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.*;
+import com.unboundid.ldap.sdk.controls.PermissiveModifyRequestControl;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFReader;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Future;
+
+import static com.unboundid.ldap.sdk.ModificationType.ADD;
+
+// imports users batch by batch: one uniqueness search per batch, one counter bump per batch size numbers and
+// pipelined writes. The numbers of rows that fail are handed to the next rows, the ones left over at the end are
+// given back to the counter if nobody reserved numbers after them.
+public class UserImporter {
+
+  public enum Format {
+    csv,
+    ldif
+  }
+
+  public record Row(long position, String uid, String name, String shell, String error) {
+    Row(long position, String uid, String name, String shell) {
+      this(position, uid, name, shell, null);
+    }
+  }
+
+  public interface FailureListener {
+    void failed(Row row, String reason);
+  }
+
+  interface RowSource extends Closeable {
+    // returns null at the end of the input
+    Row next() throws IOException;
+  }
+
+  private final ManagerLDAP u;
+  private final List<String> groups;
+  private final String defaultShell;
+  private final int batchSize;
+  private final FailureListener failureListener;
+
+  private int imported;
+  private int failed;
+  // imported users missing from at least one of the groups
+  private int incompleteMemberships;
+
+  public UserImporter(ManagerLDAP u, List<String> groups, String defaultShell, int batchSize, FailureListener failureListener) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batch size must be positive");
+    }
+    this.u = u;
+    this.groups = groups;
+    this.defaultShell = defaultShell;
+    this.batchSize = batchSize;
+    this.failureListener = failureListener;
+  }
+
+  public int getImported() {
+    return imported;
+  }
+
+  public int getFailed() {
+    return failed;
+  }
+
+  public int getIncompleteMemberships() {
+    return incompleteMemberships;
+  }
+
+  public static Format detectFormat(Path path) {
+    return path.getFileName().toString().toLowerCase().endsWith(".ldif") ? Format.ldif : Format.csv;
+  }
+
+  public void importFile(Path path, Format format) throws IOException, LDAPException {
+    try (RowSource source = format == Format.ldif ? new LdifRowSource(path) : new CsvRowSource(path)) {
+      importRows(source);
+    }
+  }
+
+  void importRows(RowSource source) throws IOException, LDAPException {
+    List<DN> groupDNs = new ArrayList<>(groups.size());
+    for (String group : groups) {
+      groupDNs.add(u.getGroupEntry(group, SearchRequest.NO_ATTRIBUTES).getParsedDN());
+    }
+
+    var uidNumbers = new BlockIdAllocator(u, ManagerLDAP.UID_DN, "uidNumber", batchSize);
+    var gidNumbers = new BlockIdAllocator(u, ManagerLDAP.GID_DN, "gidNumber", batchSize);
+    try {
+      List<Row> batch = new ArrayList<>(batchSize);
+      Row row;
+      while ((row = source.next()) != null) {
+        batch.add(row);
+        if (batch.size() == batchSize) {
+          importBatch(batch, groupDNs, uidNumbers, gidNumbers);
+          batch.clear();
+        }
+      }
+      if (!batch.isEmpty()) {
+        importBatch(batch, groupDNs, uidNumbers, gidNumbers);
+      }
+    } finally {
+      uidNumbers.close();
+      gidNumbers.close();
+    }
+  }
+
+  private void importBatch(List<Row> batch, List<DN> groupDNs, IdAllocator uidNumbers, IdAllocator gidNumbers) throws LDAPException {
+    Map<String, Row> candidates = new LinkedHashMap<>();
+    for (Row row : batch) {
+      if (row.error() != null) {
+        fail(row, row.error());
+      } else if (row.uid() == null || !ManagerLDAP.validatePosixId(row.uid())) {
+        fail(row, "Invalid user name");
+      } else if (row.name() == null || row.name().isEmpty()) {
+        fail(row, "Missing real name");
+      } else if (candidates.putIfAbsent(row.uid(), row) != null) {
+        fail(row, "Duplicate user name in input");
+      }
+    }
+
+    Set<String> existingUids = u.findExistingUids(candidates.keySet());
+    Set<String> existingGids = u.findExistingGids(candidates.keySet());
+    for (Iterator<Row> it = candidates.values().iterator(); it.hasNext(); ) {
+      Row row = it.next();
+      if (existingUids.contains(row.uid())) {
+        fail(row, "Already in use as user name");
+        it.remove();
+      } else if (existingGids.contains(row.uid())) {
+        fail(row, "Already in use as group name");
+        it.remove();
+      }
+    }
+
+    if (candidates.isEmpty()) {
+      return;
+    }
+
+    int count = candidates.size();
+    int[] uidNumber = new int[count];
+    int[] gidNumber = new int[count];
+    for (int i = 0; i < count; i++) {
+      uidNumber[i] = uidNumbers.next();
+      gidNumber[i] = gidNumbers.next();
+    }
+
+    List<Row> rows = new ArrayList<>(candidates.values());
+    List<Future<LDAPResult>> groupResults = new ArrayList<>(count);
+    List<Future<LDAPResult>> userResults = new ArrayList<>(count);
+    List<Row> created = new ArrayList<>(count);
+    List<String> memberDNs = new ArrayList<>(count);
+    // rows whose numbers are unused once the entry created without its counterpart is deleted again
+    Map<Integer, Future<LDAPResult>> undone = new LinkedHashMap<>();
+
+    try (PipelinedWriter writer = new PipelinedWriter(u.getLDAP(), batchSize)) {
+      for (int i = 0; i < count; i++) {
+        Row row = rows.get(i);
+        String shell = row.shell() != null ? row.shell() : defaultShell;
+        Entry group = ManagerLDAP.createGroupEntry(row.uid(), ManagerLDAP.GroupType.UserGroup, gidNumber[i]);
+        Entry user = ManagerLDAP.createUserEntry(row.uid(), row.name(), uidNumber[i], gidNumber[i], shell, "/home/" + row.uid());
+        groupResults.add(writer.add(new AddRequest(group)));
+        userResults.add(writer.add(new AddRequest(user)));
+      }
+      writer.flush();
+
+      for (int i = 0; i < count; i++) {
+        Row row = rows.get(i);
+        LDAPResult groupResult = PipelinedWriter.await(groupResults.get(i));
+        LDAPResult userResult = PipelinedWriter.await(userResults.get(i));
+        if (groupResult.getResultCode() != ResultCode.SUCCESS) {
+          fail(row, "Unable to create user group: " + describe(groupResult));
+          if (userResult.getResultCode() == ResultCode.SUCCESS) {
+            undone.put(i, writer.delete(new DeleteRequest(ManagerLDAP.getUserDN(row.uid()))));
+          } else {
+            undone.put(i, null);
+          }
+        } else if (userResult.getResultCode() != ResultCode.SUCCESS) {
+          fail(row, "Unable to create user: " + describe(userResult));
+          undone.put(i, writer.delete(new DeleteRequest(ManagerLDAP.getGroupDN(row.uid(), ManagerLDAP.GroupType.UserGroup))));
+        } else {
+          created.add(row);
+          memberDNs.add(ManagerLDAP.getUserDN(row.uid()).toString());
+        }
+      }
+
+      writer.flush();
+      for (var entry : undone.entrySet()) {
+        // a number still held by an entry that could not be deleted must not be handed out again
+        if (entry.getValue() == null || PipelinedWriter.await(entry.getValue()).getResultCode() == ResultCode.SUCCESS) {
+          uidNumbers.release(uidNumber[entry.getKey()]);
+          gidNumbers.release(gidNumber[entry.getKey()]);
+        }
+      }
+
+      if (created.isEmpty()) {
+        return;
+      }
+      imported += created.size();
+
+      List<Future<LDAPResult>> memberResults = new ArrayList<>(groupDNs.size());
+      for (DN groupDN : groupDNs) {
+        ModifyRequest request = new ModifyRequest(groupDN, new Modification(ADD, "member", memberDNs.toArray(new String[0])));
+        request.addControl(new PermissiveModifyRequestControl());
+        memberResults.add(writer.modify(request));
+      }
+      writer.flush();
+      for (DN groupDN : groupDNs) {
+        u.invalidate(groupDN);
+      }
+
+      // the accounts exist either way, only their memberships are incomplete
+      boolean membershipsComplete = true;
+      for (int i = 0; i < groupDNs.size(); i++) {
+        LDAPResult result = PipelinedWriter.await(memberResults.get(i));
+        if (result.getResultCode() != ResultCode.SUCCESS) {
+          membershipsComplete = false;
+          for (Row row : created) {
+            failureListener.failed(row, "Created, but unable to add to group " + groups.get(i) + ": " + describe(result));
+          }
+        }
+      }
+      if (!membershipsComplete) {
+        incompleteMemberships += created.size();
+      }
+    }
+  }
+
+  private static String describe(LDAPResult result) {
+    String message = result.getDiagnosticMessage();
+    return message == null ? result.getResultCode().getName() : result.getResultCode().getName() + " (" + message + ")";
+  }
+
+  private void fail(Row row, String reason) {
+    failed++;
+    failureListener.failed(row, reason);
+  }
+
+  static final class CsvRowSource implements RowSource {
+    private final BufferedReader reader;
+    private long lineNumber;
+
+    CsvRowSource(Path path) throws IOException {
+      reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+    }
+
+    // format: username,realname[,shell], fields may be quoted, lines starting with # are ignored
+    @Override
+    public Row next() throws IOException {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isBlank() || line.startsWith("#")) {
+          continue;
+        }
+        List<String> fields = splitCsvLine(line);
+        String shell = fields.size() > 2 && !fields.get(2).isEmpty() ? fields.get(2) : null;
+        return new Row(lineNumber, fields.get(0), fields.size() > 1 ? fields.get(1) : null, shell);
+      }
+      return null;
+    }
+
+    static List<String> splitCsvLine(String line) {
+      List<String> fields = new ArrayList<>(3);
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+        char c = line.charAt(i);
+        if (quoted) {
+          if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+            field.append('"');
+            i++;
+          } else if (c == '"') {
+            quoted = false;
+          } else {
+            field.append(c);
+          }
+        } else if (c == '"') {
+          quoted = true;
+        } else if (c == ',') {
+          fields.add(field.toString().trim());
+          field.setLength(0);
+        } else {
+          field.append(c);
+        }
+      }
+      fields.add(field.toString().trim());
+      return fields;
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+
+  // reads the uid, cn and optional loginShell of every record, all other attributes are ignored
+  static final class LdifRowSource implements RowSource {
+    private final LDIFReader reader;
+    private long recordNumber;
+
+    LdifRowSource(Path path) throws IOException {
+      reader = new LDIFReader(path.toFile());
+    }
+
+    @Override
+    public Row next() throws IOException {
+      recordNumber++;
+      try {
+        Entry entry = reader.readEntry();
+        if (entry == null) {
+          return null;
+        }
+        return new Row(recordNumber, entry.getAttributeValue("uid"), entry.getAttributeValue("cn"), entry.getAttributeValue("loginShell"));
+      } catch (LDIFException e) {
+        if (!e.mayContinueReading()) {
+          throw new IOException("Unable to read LDIF record " + recordNumber, e);
+        }
+        return new Row(recordNumber, null, null, null, "Invalid LDIF record: " + e.getMessage());
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+}
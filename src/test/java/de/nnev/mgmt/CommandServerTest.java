@@ -0,0 +1,138 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import org.newsclub.net.unix.AFUNIXSocket;
+import org.newsclub.net.unix.AFUNIXSocketAddress;
+import picocli.CommandLine.ExitCode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommandServerTest {
+
+  TestInMemLdap inMemLdapManager;
+  CommandServer server;
+  Thread serving;
+
+  @TempDir
+  Path tempDir;
+
+  @BeforeEach
+  void startServer() throws LDAPException, LDIFException, IOException {
+    inMemLdapManager = new TestInMemLdap();
+    inMemLdapManager.startLdap();
+    server = new CommandServer(tempDir.resolve("mgmt.sock"), new ManagerLDAP(inMemLdapManager.getConnection()));
+    serving = Thread.ofVirtual().start(() -> {
+      try {
+        server.serve();
+      } catch (IOException ignored) {
+      }
+    });
+  }
+
+  @AfterEach
+  void stopServer() throws InterruptedException {
+    server.close();
+    serving.join();
+    inMemLdapManager.shutdownLdap();
+  }
+
+  @Test
+  void test_socket() throws IOException {
+    Path socket = tempDir.resolve("mgmt.sock");
+    assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(socket));
+    // only the socket is left of binding it
+    try (var files = Files.list(tempDir)) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test
+  void test_execute() throws IOException {
+    try (var response = send(request(tempDir.toString(), "list-users", "-a", "uid"))) {
+      assertEquals(ExitCode.OK, CommandServer.readNumber(response));
+      String out = CommandServer.readString(response);
+      assertTrue(out.contains("user1"), out);
+      assertEquals("", CommandServer.readString(response));
+    }
+  }
+
+  @Test
+  void test_limits() throws IOException {
+    String[] fields = new String[CommandServer.MAX_ARGS + 2];
+    fields[0] = tempDir.toString();
+    for (int i = 1; i < fields.length; i++) {
+      fields[i] = "-a";
+    }
+    try (var response = send(request(fields))) {
+      assertEquals(ExitCode.USAGE, CommandServer.readNumber(response));
+      assertEquals("", CommandServer.readString(response));
+      assertTrue(CommandServer.readString(response).contains(CommandServer.MAX_ARGS + " arguments"));
+    }
+
+    try (var response = send((CommandServer.MAX_REQUEST_BYTES + 1 + "\n").getBytes(StandardCharsets.US_ASCII))) {
+      assertEquals(ExitCode.USAGE, CommandServer.readNumber(response));
+    }
+  }
+
+  @Test
+  void test_serverOptions() throws IOException {
+    for (String[] args : List.of(
+      new String[]{"--test", "add-group", "group4"},
+      new String[]{"add-group", "--offline", "export.ldif", "--offline-output", "output.ldif", "group4"},
+      new String[]{"--id-block-size", "1", "add-group", "group4"},
+      new String[]{"--stats", "list-users"})) {
+      List<String> fields = new ArrayList<>(List.of(tempDir.toString()));
+      fields.addAll(List.of(args));
+      try (var response = send(request(fields.toArray(new String[0])))) {
+        assertEquals(ExitCode.USAGE, CommandServer.readNumber(response), String.join(" ", args));
+        assertEquals("", CommandServer.readString(response));
+        assertTrue(CommandServer.readString(response).contains("not available through the server"));
+      }
+    }
+    assertThrows(RuntimeException.class, () -> new ManagerLDAP(inMemLdapManager.getConnection()).getGroupEntry("group4"));
+  }
+
+  @Test
+  void test_syncFromStdin() throws IOException {
+    try (var response = send(request(tempDir.toString(), "sync-group-members", "group1=-"))) {
+      assertEquals(ExitCode.USAGE, CommandServer.readNumber(response));
+      assertEquals("", CommandServer.readString(response));
+      assertTrue(CommandServer.readString(response).contains("stdin"));
+    }
+  }
+
+  private static byte[] request(String... fields) throws IOException {
+    var payload = new ByteArrayOutputStream();
+    for (String field : fields) {
+      payload.write(field.getBytes(StandardCharsets.UTF_8));
+      payload.write(0);
+    }
+    var request = new ByteArrayOutputStream();
+    // padded like the output of wc -c
+    request.write(("   " + payload.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+    payload.writeTo(request);
+    return request.toByteArray();
+  }
+
+  private InputStream send(byte[] request) throws IOException {
+    var socket = AFUNIXSocket.newInstance();
+    socket.connect(AFUNIXSocketAddress.of(tempDir.resolve("mgmt.sock")));
+    socket.getOutputStream().write(request);
+    socket.getOutputStream().flush();
+    // closing the stream closes the socket
+    return socket.getInputStream();
+  }
+}
@@ -0,0 +1,98 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldif.LDIFException;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static de.nnev.mgmt.DirectoryAudit.Problem.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryAuditTest {
+
+  TestInMemLdap inMemLdapManager;
+  ManagerLDAP managerLDAP;
+
+  @BeforeEach
+  void startInMemServer() throws LDAPException, LDIFException, IOException {
+    inMemLdapManager = new TestInMemLdap();
+    inMemLdapManager.startLdap();
+    managerLDAP = new ManagerLDAP(inMemLdapManager.getConnection());
+  }
+
+  @AfterEach
+  void stopInMemServer() {
+    inMemLdapManager.shutdownLdap();
+  }
+
+  @Test
+  void test_consistentDirectory() throws LDAPException {
+    var result = audit(false, new ArrayList<>());
+    assertEquals(3, result.users());
+    assertEquals(4, result.groups());
+    assertEquals(0, result.total());
+  }
+
+  @Test
+  void test_findAndFix() throws LDAPException {
+    String ghostDN = "uid=ghost," + ManagerLDAP.USERS_BASE;
+    inMemLdapManager.srv.modify("cn=group1," + ManagerLDAP.GROUPS_BASE, new Modification(ModificationType.ADD, "member", ghostDN));
+    inMemLdapManager.srv.modify("uid=user3," + ManagerLDAP.USERS_BASE, new Modification(ModificationType.REPLACE, "uidNumber", "1000"));
+    inMemLdapManager.srv.modify("uid=user2," + ManagerLDAP.USERS_BASE, new Modification(ModificationType.REPLACE, "gidNumber", "4242"));
+    inMemLdapManager.srv.modify(ManagerLDAP.UID_DN, new Modification(ModificationType.REPLACE, "uidNumber", "1000"));
+
+    List<String> fixed = new ArrayList<>();
+    var result = audit(true, fixed);
+    assertEquals(Map.of(danglingMember, 1, duplicateUidNumber, 2, missingPrimaryGroup, 1, counterBehind, 2), result.problems());
+    assertEquals(3, result.fixed());
+    assertEquals(List.of(
+      "counterBehind " + ManagerLDAP.UID_DN,
+      "counterBehind " + ManagerLDAP.GID_DN,
+      "danglingMember cn=group1," + ManagerLDAP.GROUPS_BASE), fixed);
+
+    assertNull(managerLDAP.getGroupEntry("group1", "member").getAttributeValues("member"));
+    assertEquals(1002, managerLDAP.getPosixIdCounter(ManagerLDAP.UID_DN, "uidNumber"));
+    assertEquals(4243, managerLDAP.getPosixIdCounter(ManagerLDAP.GID_DN, "gidNumber"));
+
+    // renumbering users and creating groups needs a human
+    result = audit(true, new ArrayList<>());
+    assertEquals(Map.of(duplicateUidNumber, 2, missingPrimaryGroup, 1), result.problems());
+    assertEquals(0, result.fixed());
+  }
+
+  @Test
+  void test_idSet() {
+    var ids = new DirectoryAudit.IdSet();
+    assertEquals(-1, ids.next(0));
+    assertTrue(ids.add(5));
+    assertTrue(ids.add(70000));
+    assertTrue(ids.add(Integer.MAX_VALUE));
+    assertFalse(ids.add(5));
+    assertTrue(ids.contains(70000));
+    assertFalse(ids.contains(70001));
+    assertEquals(5, ids.next(0));
+    assertEquals(70000, ids.next(6));
+    assertEquals(Integer.MAX_VALUE, ids.next(70001));
+    assertEquals(-1, ids.next(Integer.MIN_VALUE));
+    assertEquals(Integer.MAX_VALUE, ids.max());
+  }
+
+  private DirectoryAudit.Result audit(boolean fix, List<String> fixed) throws LDAPException {
+    return new DirectoryAudit(managerLDAP, 2, 2, fix, new DirectoryAudit.Listener() {
+      @Override
+      public void found(DirectoryAudit.Problem problem, String dn, String detail) {
+      }
+
+      @Override
+      public void fixed(DirectoryAudit.Problem problem, String dn, String detail) {
+        fixed.add(problem + " " + dn);
+      }
+    }).audit();
+  }
+}
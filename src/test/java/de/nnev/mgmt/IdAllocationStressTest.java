@@ -0,0 +1,79 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdAllocationStressTest {
+
+  static final int ALLOCATIONS = 640;
+
+  TestInMemLdap inMemLdapManager;
+
+  @BeforeEach
+  void startInMemServer() throws LDAPException, LDIFException, IOException {
+    inMemLdapManager = new TestInMemLdap();
+    inMemLdapManager.startLdap();
+  }
+
+  @AfterEach
+  void stopInMemServer() {
+    inMemLdapManager.shutdownLdap();
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 8, 64})
+  void test_concurrentAllocationsAreUnique(int allocators, TestReporter reporter) throws Exception {
+    Set<Integer> allocated = ConcurrentHashMap.newKeySet();
+    List<Integer> duplicates = new CopyOnWriteArrayList<>();
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(allocators);
+
+    List<Future<?>> futures = new ArrayList<>(allocators);
+    for (int i = 0; i < allocators; i++) {
+      int allocations = ALLOCATIONS / allocators;
+      futures.add(executor.submit(() -> {
+        try (LDAPConnection conn = inMemLdapManager.srv.getConnection()) {
+          var managerLDAP = new ManagerLDAP(conn);
+          start.await();
+          for (int n = 0; n < allocations; n++) {
+            int uidNumber = managerLDAP.getNextUidNumber();
+            if (!allocated.add(uidNumber)) {
+              duplicates.add(uidNumber);
+            }
+          }
+        }
+        return null;
+      }));
+    }
+
+    long startTime = System.nanoTime();
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    long elapsed = System.nanoTime() - startTime;
+    executor.shutdown();
+
+    reporter.publishEntry(allocators + " concurrent allocators", String.format("%d allocations in %d ms (%.0f allocations/sec)",
+      ALLOCATIONS, TimeUnit.NANOSECONDS.toMillis(elapsed), ALLOCATIONS * 1e9 / elapsed));
+
+    assertTrue(duplicates.isEmpty(), "duplicate uid numbers: " + duplicates);
+    assertEquals(ALLOCATIONS, allocated.size());
+    for (int uidNumber = 2000; uidNumber < 2000 + ALLOCATIONS; uidNumber++) {
+      assertTrue(allocated.contains(uidNumber));
+    }
+  }
+}
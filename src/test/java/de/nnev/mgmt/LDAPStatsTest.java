@@ -0,0 +1,69 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LDAPStatsTest {
+
+  TestInMemLdap inMemLdapManager;
+  LDAPStats stats;
+  ManagerLDAP managerLDAP;
+
+  @BeforeEach
+  void startInMemServer() throws LDAPException, LDIFException, IOException {
+    inMemLdapManager = new TestInMemLdap();
+    inMemLdapManager.startLdap();
+    stats = new LDAPStats();
+    managerLDAP = new ManagerLDAP(stats.instrument(inMemLdapManager.getConnection()));
+  }
+
+  @AfterEach
+  void stopInMemServer() {
+    inMemLdapManager.shutdownLdap();
+  }
+
+  @Test
+  void test_countsOperationsPerMethod() throws LDAPException {
+    managerLDAP.addUserWithUserGroup("user4", "User Four", "/bin/bash");
+    assertThrows(RuntimeException.class, () -> managerLDAP.getUserEntry("nobody"));
+    long roundTrips = stats.getRoundTrips();
+    assertTrue(roundTrips > 0);
+
+    String metrics = stats.toPrometheus();
+    assertTrue(metrics.contains("ldap_user_mgmt_operation_duration_seconds_count{method=\"addUserWithUserGroup\",operation=\"add\"} 2"));
+    assertTrue(metrics.contains("method=\"getUserEntry\",operation=\"search\""));
+    assertFalse(metrics.contains("method=\"addGroup\""));
+    assertTrue(metrics.contains("ldap_user_mgmt_value_bytes_returned_total{method=\"getUserEntry\",operation=\"search\"} 0"));
+  }
+
+  @Test
+  void test_countsOperationsOnCheckedOutConnections() throws LDAPException {
+    // 3 users in pages of 2 on one connection
+    managerLDAP.forEachUser(2, entry -> {
+    }, "uid");
+    assertCount("forEachUser", "search", 2);
+
+    // counters, user group, user and membership in one transaction
+    managerLDAP.addUserWithUserGroupAtomically("user4", "User Four", "/bin/bash", List.of("group1"));
+    assertCount("addUserWithUserGroupAtomically", "extended", 2);
+    assertCount("addUserWithUserGroupAtomically", "add", 2);
+    assertCount("addUserWithUserGroupAtomically", "modify", 3);
+
+    try (var async = new ManagerLDAPAsync(managerLDAP, 4)) {
+      assertEquals(2001, async.addUserWithUserGroup("user5", "User Five", "/bin/bash").join());
+    }
+    assertCount("async", "search", 2);
+    assertCount("async", "add", 2);
+  }
+
+  private void assertCount(String method, String operation, long count) {
+    String metric = "ldap_user_mgmt_operation_duration_seconds_count{method=\"" + method + "\",operation=\"" + operation + "\"} " + count + "\n";
+    assertTrue(stats.toPrometheus().contains(metric), metric);
+  }
+}
@@ -0,0 +1,127 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFChangeRecord;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFReader;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LDIFDirectoryTest {
+
+  TestInMemLdap inMemLdapManager;
+  ManagerLDAP managerLDAP;
+
+  @TempDir
+  Path dir;
+
+  @BeforeEach
+  void startInMemServer() throws LDAPException, LDIFException, IOException {
+    inMemLdapManager = new TestInMemLdap();
+    inMemLdapManager.startLdap();
+    managerLDAP = new ManagerLDAP(inMemLdapManager.getConnection());
+  }
+
+  @AfterEach
+  void stopInMemServer() {
+    inMemLdapManager.shutdownLdap();
+  }
+
+  @Test
+  void test_writeLDIF() throws LDAPException, LDIFException, IOException {
+    Path export = export();
+    byte[] original = Files.readAllBytes(export);
+    try (var offline = LDIFDirectory.open(export)) {
+      change(new ManagerLDAP(offline.ldap()));
+      offline.writeLDIF(dir.resolve("output.ldif"));
+    }
+    assertArrayEquals(original, Files.readAllBytes(export));
+
+    inMemLdapManager.srv.importFromLDIF(true, dir.resolve("output.ldif").toString());
+    verify();
+  }
+
+  @Test
+  void test_writeChanges() throws LDAPException, LDIFException, IOException {
+    try (var offline = LDIFDirectory.open(export())) {
+      change(new ManagerLDAP(offline.ldap()));
+      offline.writeChanges(dir.resolve("changes.ldif"));
+    }
+
+    try (var reader = new LDIFReader(dir.resolve("changes.ldif").toFile())) {
+      LDIFChangeRecord change;
+      while ((change = reader.readChangeRecord()) != null) {
+        change.processChange(inMemLdapManager.getConnection());
+      }
+    }
+    verify();
+  }
+
+  @Test
+  void test_writeToInput() throws LDAPException, LDIFException, IOException {
+    Path export = export();
+    byte[] original = Files.readAllBytes(export);
+    try (var offline = LDIFDirectory.open(export)) {
+      change(new ManagerLDAP(offline.ldap()));
+      assertThrows(IOException.class, () -> offline.writeLDIF(export));
+      assertThrows(IOException.class, () -> offline.writeChanges(dir.resolve(".").resolve("export.ldif")));
+    }
+    assertArrayEquals(original, Files.readAllBytes(export));
+    try (var files = Files.list(dir)) {
+      assertEquals(List.of(export), files.toList());
+    }
+  }
+
+  @Test
+  void test_search() throws LDAPException, LDIFException, IOException {
+    try (var offline = LDIFDirectory.open(export())) {
+      assertEquals(inMemLdapManager.srv.countEntries(), offline.getRecords());
+      var offlineLDAP = new ManagerLDAP(offline.ldap());
+      assertTrue(offlineLDAP.isUidUnique("user1"));
+      assertFalse(offlineLDAP.isUidUnique("user4"));
+      assertEquals("1001", offlineLDAP.getGroupEntry("group2").getAttributeValue("gidNumber"));
+      assertEquals(3, offlineLDAP.getGroupEntry("group2", "member").getAttributeValues("member").length);
+      assertNull(offlineLDAP.getUserEntry("user4"));
+
+      // not answered by the index
+      List<String> uids = new ArrayList<>();
+      offlineLDAP.forEachUser(2, entry -> uids.add(entry.getAttributeValue("uid")), "uid");
+      assertEquals(List.of("user1", "user2", "user3"), uids.stream().sorted().toList());
+
+      offline.ldap().delete("uid=user3," + ManagerLDAP.USERS_BASE);
+      assertFalse(offlineLDAP.isUidUnique("user3"));
+      assertEquals(1, offline.getChanges());
+      assertNotNull(inMemLdapManager.getConnection().getEntry("uid=user3," + ManagerLDAP.USERS_BASE));
+    }
+  }
+
+  private Path export() throws LDAPException {
+    Path export = dir.resolve("export.ldif");
+    inMemLdapManager.srv.exportToLDIF(export.toString(), true, true);
+    return export;
+  }
+
+  private static void change(ManagerLDAP offlineLDAP) throws LDAPException {
+    offlineLDAP.addUserWithUserGroup("user4", "User Four", "/usr/bin/bash");
+    offlineLDAP.addUserToGroup("user4", "group1");
+    offlineLDAP.addSshKey("user1", SshPublicKeyTest.ED25519 + " laptop");
+  }
+
+  private void verify() throws LDAPException {
+    assertTrue(managerLDAP.isUidUnique("user4"));
+    assertEquals("2000", managerLDAP.getUserEntry("user4").getAttributeValue("uidNumber"));
+    assertEquals("2000", managerLDAP.getGroupEntry("user4").getAttributeValue("gidNumber"));
+    assertEquals(1, managerLDAP.getGroupEntry("group1", "member").getAttributeValues("member").length);
+    assertEquals(SshPublicKeyTest.ED25519 + " laptop", managerLDAP.getUserEntry("user1").getAttributeValue("sshPublicKey"));
+    assertEquals(2001, managerLDAP.getPosixIdCounter(ManagerLDAP.UID_DN, "uidNumber"));
+    assertEquals(2001, managerLDAP.getPosixIdCounter(ManagerLDAP.GID_DN, "gidNumber"));
+  }
+}
@@ -0,0 +1,108 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManagerLDAPAsyncTest {
+
+  TestInMemLdap inMemLdapManager;
+  ManagerLDAP managerLDAP;
+  ManagerLDAPAsync async;
+
+  @BeforeEach
+  void startInMemServer() throws LDAPException, LDIFException, IOException {
+    inMemLdapManager = new TestInMemLdap();
+    inMemLdapManager.startLdap();
+    managerLDAP = new ManagerLDAP(inMemLdapManager.getConnection());
+    async = new ManagerLDAPAsync(managerLDAP, 4);
+  }
+
+  @AfterEach
+  void stopInMemServer() {
+    async.close();
+    inMemLdapManager.shutdownLdap();
+  }
+
+  @Test
+  void test_addUserWithUserGroup() throws LDAPException {
+    int uidNumber = async.addUserWithUserGroup("user4", "User Four", "/bin/bash").join();
+    assertEquals(uidNumber, managerLDAP.getUserEntry("user4").getAttributeValueAsInteger("uidNumber"));
+    assertEquals(managerLDAP.getGidNumber("user4"), managerLDAP.getUserEntry("user4").getAttributeValueAsInteger("gidNumber"));
+
+    var e = assertThrows(CompletionException.class, () -> async.addUserWithUserGroup("user1", "User One", "/bin/bash").join());
+    assertEquals("Already in use as user name", e.getCause().getMessage());
+    e = assertThrows(CompletionException.class, () -> async.addUserWithUserGroup("group1", "Group One", "/bin/bash").join());
+    assertEquals("Already in use as group name", e.getCause().getMessage());
+    assertFalse(managerLDAP.isUidUnique("group1"));
+  }
+
+  @Test
+  void test_manyOperationsInFlight() throws LDAPException, InterruptedException {
+    List<CompletableFuture<Integer>> added = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      added.add(async.addUserWithUserGroup("bulk" + i, "Bulk " + i, "/bin/bash"));
+    }
+    List<CompletableFuture<Void>> memberships = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      String uid = "bulk" + i;
+      memberships.add(added.get(i).thenCompose(uidNumber -> async.addUserToGroup(uid, "group1")));
+    }
+    CompletableFuture.allOf(memberships.toArray(new CompletableFuture[0])).join();
+    async.flush();
+
+    assertEquals(20, added.stream().map(CompletableFuture::join).distinct().count());
+    assertEquals(20, managerLDAP.getGroupEntry("group1").getAttributeValues("member").length);
+
+    async.removeUserFromGroup("bulk0", "group1").join();
+    async.removeUserFromGroup("bulk0", "group1").join();
+    assertEquals(19, managerLDAP.getGroupEntry("group1").getAttributeValues("member").length);
+  }
+
+  @Test
+  void test_lookups() throws LDAPException {
+    var cache = new EntryCache(10, Duration.ofMinutes(1));
+    managerLDAP.setEntryCache(cache);
+
+    async.getUserEntry("user1").join();
+    var user = async.getUserEntry("user1").join();
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertSame(user, managerLDAP.getUserEntry("user1"));
+
+    // projected lookups are answered from the cache and a miss caches the whole entry
+    var projected = async.getUserEntry("user1", "uidNumber").join();
+    assertEquals("1000", projected.getAttributeValue("uidNumber"));
+    assertFalse(projected.hasAttribute("cn"));
+    assertEquals(3, cache.getHits());
+    assertEquals("1000", async.getGroupEntry("group1", "gidNumber").join().getAttributeValue("gidNumber"));
+    assertEquals(2, cache.size());
+    assertTrue(async.getGroupEntry("group1").join().hasAttribute("cn"));
+    assertEquals(4, cache.getHits());
+
+    // read at the second expected DN
+    async.addUserWithUserGroup("user4", "User Four", "/bin/bash").join();
+    assertEquals(ManagerLDAP.getGroupDN("user4", ManagerLDAP.GroupType.UserGroup), async.getGroupEntry("user4").join().getParsedDN());
+
+    var e = assertThrows(CompletionException.class, () -> async.getGroupEntry("group4").join());
+    assertEquals("Group not found", e.getCause().getMessage());
+  }
+
+  @Test
+  void test_sshKeys() throws LDAPException {
+    String key = SshPublicKeyTest.ED25519;
+    assertEquals(1, async.addSshKeys("user1", List.of(key)).join().size());
+    assertEquals(0, async.addSshKeys("user1", List.of(key + " again")).join().size());
+    assertEquals(1, async.removeSshKeys("user1", List.of(key)).join().size());
+    assertFalse(managerLDAP.getUserEntry("user1").hasAttribute("sshPublicKey"));
+  }
+}
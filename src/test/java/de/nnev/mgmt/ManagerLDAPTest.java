@@ -1,13 +1,25 @@
 package de.nnev.mgmt;
 
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Filter;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldif.LDIFException;
 import org.junit.jupiter.api.*;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class ManagerLDAPTest {
@@ -51,6 +63,338 @@ class ManagerLDAPTest {
     assertEquals(2002, managerLDAP.getNextGidNumber());
   }
 
+  @Test
+  void test_getNextUIDNumberSkipsNumbersInUse() throws LDAPException {
+    inMemLdapManager.getConnection().add(ManagerLDAP.createUserEntry("clash", "Clash", 2000, 1000, "/bin/sh", "/home/clash"));
+    assertTrue(managerLDAP.isPosixIdNumberInUse("uidNumber", 2000, 2001));
+    assertFalse(managerLDAP.isPosixIdNumberInUse("gidNumber", 2000, 2001));
+
+    assertEquals(2001, managerLDAP.getNextUidNumber());
+    assertEquals(2000, managerLDAP.getNextGidNumber());
+  }
+
+  @Test
+  void test_serversStartWithTheSameData() throws LDAPException, LDIFException, IOException {
+    managerLDAP.addUserWithUserGroup("user4", "User Four", "/bin/bash");
+
+    var other = new TestInMemLdap();
+    other.startLdap();
+    try {
+      var otherLDAP = new ManagerLDAP(other.getConnection());
+      assertFalse(otherLDAP.isUidUnique("user4"));
+      assertTrue(otherLDAP.isUidUnique("user1"));
+      assertEquals(2000, otherLDAP.getNextUidNumber());
+    } finally {
+      other.shutdownLdap();
+    }
+  }
+
+  @Test
+  void test_blockAllocation() throws LDAPException {
+    managerLDAP.useBlockAllocation(10);
+    assertEquals(2000, managerLDAP.getNextUidNumber());
+    assertEquals(2001, managerLDAP.getNextUidNumber());
+    assertEquals(2000, managerLDAP.getNextGidNumber());
+    assertEquals(2010, inMemLdapManager.getConnection().getEntry(ManagerLDAP.UID_DN).getAttributeValueAsInteger("uidNumber"));
+
+    managerLDAP.releaseIdNumbers();
+    var other = new ManagerLDAP(inMemLdapManager.getConnection());
+    assertEquals(2002, other.getNextUidNumber());
+    assertEquals(2001, other.getNextGidNumber());
+  }
+
+  @Test
+  void test_blockAllocationKeepsGapAfterConcurrentReservation() throws LDAPException {
+    managerLDAP.useBlockAllocation(10);
+    assertEquals(2000, managerLDAP.getNextUidNumber());
+    var other = new ManagerLDAP(inMemLdapManager.getConnection());
+    assertEquals(2010, other.getNextUidNumber());
+
+    managerLDAP.releaseIdNumbers();
+    assertEquals(2011, other.getNextUidNumber());
+  }
+
+  @Test
+  void test_addUserWithUserGroupAtomically() throws LDAPException {
+    assertEquals(2000, managerLDAP.addUserWithUserGroupAtomically("user4", "User Four", "/bin/bash", List.of("group1")));
+    assertEquals(2000, managerLDAP.getUserEntry("user4").getAttributeValueAsInteger("gidNumber"));
+    assertEquals(2000, managerLDAP.getGidNumber("user4"));
+    assertTrue(managerLDAP.getGroupEntry("group1").hasAttributeValue("member", "uid=user4,ou=users,dc=noname-ev,dc=de"));
+
+    assertThrows(RuntimeException.class, () -> managerLDAP.addUserWithUserGroupAtomically("group2", "Group Two", "/bin/bash", List.of()));
+    assertThrows(RuntimeException.class, () -> managerLDAP.addUserWithUserGroupAtomically("user5", "User Five", "/bin/bash", List.of("nogroup")));
+    assertEquals(2001, managerLDAP.getNextUidNumber());
+    assertEquals(2001, managerLDAP.getNextGidNumber());
+  }
+
+  @Test
+  void test_addUserWithUserGroupAtomicallyRollsBack() throws LDAPException {
+    // a leftover entry that is no posixAccount: the names count as free, but the user entry can't be added
+    inMemLdapManager.srv.add("uid=user4," + ManagerLDAP.USERS_BASE, new Attribute("objectClass", "top", "account"), new Attribute("uid", "user4"));
+
+    assertThrows(LDAPException.class, () -> managerLDAP.addUserWithUserGroupAtomically("user4", "User Four", "/bin/bash", List.of("group1")));
+    assertLeftNothingBehind();
+  }
+
+  @Test
+  void test_addUserWithUserGroupAtomicallyReleasesNumbers() throws LDAPException {
+    inMemLdapManager.srv.add("uid=user4," + ManagerLDAP.USERS_BASE, new Attribute("objectClass", "top", "account"), new Attribute("uid", "user4"));
+    managerLDAP.useBlockAllocation(10);
+
+    assertThrows(LDAPException.class, () -> managerLDAP.addUserWithUserGroupAtomically("user4", "User Four", "/bin/bash", List.of("group1")));
+    // the unused block, including the numbers taken for user4, goes back to the counters
+    managerLDAP.releaseIdNumbers();
+    assertLeftNothingBehind();
+  }
+
+  @Test
+  void test_addUserWithUserGroupCompensates() throws LDAPException {
+    inMemLdapManager.srv.add("uid=user4," + ManagerLDAP.USERS_BASE, new Attribute("objectClass", "top", "account"), new Attribute("uid", "user4"));
+    // the server interface itself hands out no connection, so the steps are undone one by one
+    var compensating = new ManagerLDAP(inMemLdapManager.srv);
+
+    assertThrows(LDAPException.class, () -> compensating.addUserWithUserGroupAtomically("user4", "User Four", "/bin/bash", List.of("group1")));
+    assertLeftNothingBehind();
+
+    // the numbers given back are handed out again
+    inMemLdapManager.srv.delete("uid=user4," + ManagerLDAP.USERS_BASE);
+    assertEquals(2000, compensating.addUserWithUserGroupAtomically("user4", "User Four", "/bin/bash", List.of("group1")));
+    assertEquals(2000, managerLDAP.getGidNumber("user4"));
+    assertTrue(managerLDAP.getGroupEntry("group1", "member").hasAttributeValue("member", "uid=user4,ou=users,dc=noname-ev,dc=de"));
+  }
+
+  private void assertLeftNothingBehind() throws LDAPException {
+    assertFalse(managerLDAP.isGidUnique("user4"));
+    assertFalse(managerLDAP.getGroupEntry("group1", "member").hasAttribute("member"));
+    assertEquals(2000, managerLDAP.getPosixIdCounter(ManagerLDAP.UID_DN, "uidNumber"));
+    assertEquals(2000, managerLDAP.getPosixIdCounter(ManagerLDAP.GID_DN, "gidNumber"));
+  }
+
+  @Test
+  void test_entryCache() throws LDAPException {
+    var cache = new EntryCache(10, Duration.ofMinutes(1));
+    managerLDAP.setEntryCache(cache);
+
+    managerLDAP.getUserEntry("user1");
+    var user = managerLDAP.getUserEntry("user1");
+    // existence checks are no lookups and don't count towards the hit rate
+    assertTrue(managerLDAP.isUidUnique("user1"));
+    assertFalse(managerLDAP.isUidUnique("user4"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    // the cached entry is shared
+    assertThrows(UnsupportedOperationException.class, () -> user.setAttribute("cn", "Somebody Else"));
+
+    assertFalse(managerLDAP.getGroupEntry("group1").hasAttribute("member"));
+    managerLDAP.addUserToGroup("user1", "group1");
+    assertEquals(1, cache.getInvalidations());
+    assertTrue(managerLDAP.getGroupEntry("group1").hasAttributeValue("member", "uid=user1,ou=users,dc=noname-ev,dc=de"));
+  }
+
+  @Test
+  void test_projectedLookupsUseTheCache() throws LDAPException {
+    var cache = new EntryCache(10, Duration.ofMinutes(1));
+    managerLDAP.setEntryCache(cache);
+
+    var group = managerLDAP.getGroupEntry("group2", "gidNumber");
+    assertEquals(1001, group.getAttributeValueAsInteger("gidNumber"));
+    assertFalse(group.hasAttribute("member"));
+    assertEquals(1, cache.size());
+
+    assertEquals(1001, managerLDAP.getGidNumber("group2"));
+    assertEquals(3, managerLDAP.getGroupEntry("group2", "member").getAttributeValues("member").length);
+    assertFalse(managerLDAP.getGroupEntry("group2", SearchRequest.NO_ATTRIBUTES).hasAttribute("gidNumber"));
+    assertEquals(3, managerLDAP.getGroupEntry("group2").getAttributeValues("member").length);
+    assertEquals(4, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  void test_entryCacheEviction() throws LDAPException {
+    var cache = new EntryCache(2, Duration.ofMinutes(1));
+    managerLDAP.setEntryCache(cache);
+
+    managerLDAP.getUserEntry("user1");
+    managerLDAP.getUserEntry("user2");
+    managerLDAP.getUserEntry("user1");
+    managerLDAP.getUserEntry("user3");
+    assertEquals(2, cache.size());
+
+    managerLDAP.getUserEntry("user1");
+    managerLDAP.getUserEntry("user2");
+    assertEquals(2, cache.getHits());
+    assertEquals(4, cache.getMisses());
+  }
+
+  @Test
+  void test_projectedLookups() throws LDAPException {
+    var group = managerLDAP.getGroupEntry("group2", "gidNumber");
+    assertEquals("cn=group2,ou=groups,dc=noname-ev,dc=de", group.getDN());
+    assertEquals(1001, group.getAttributeValueAsInteger("gidNumber"));
+    assertFalse(group.hasAttribute("member"));
+    assertEquals(3, managerLDAP.getGroupEntry("group2").getAttributeValues("member").length);
+
+    int gidNumber = managerLDAP.addGroup("usergroup", ManagerLDAP.GroupType.UserGroup);
+    assertTrue(managerLDAP.isGidUnique("usergroup"));
+    assertEquals(gidNumber, managerLDAP.getGidNumber("usergroup"));
+    assertEquals("cn=usergroup,ou=userGroups,ou=groups,dc=noname-ev,dc=de", managerLDAP.getGroupEntry("usergroup").getDN());
+  }
+
+  @Test
+  void test_membershipChangesAreIdempotent() throws LDAPException {
+    String user1DN = "uid=user1,ou=users,dc=noname-ev,dc=de";
+
+    managerLDAP.addUserToGroup("user1", "group1");
+    managerLDAP.addUserToGroup("user1", "group1");
+    managerLDAP.addUserToGroup("user1", "group2");
+    assertTrue(managerLDAP.getGroupEntry("group1").hasAttributeValue("member", user1DN));
+    assertEquals(3, managerLDAP.getGroupEntry("group2").getAttributeValues("member").length);
+
+    managerLDAP.removeUserFromGroup("user1", "group1");
+    managerLDAP.removeUserFromGroup("user1", "group1");
+    managerLDAP.removeUserFromGroup("user1", "group3");
+    assertFalse(managerLDAP.getGroupEntry("group1").hasAttribute("member"));
+  }
+
+  @Test
+  void test_forEachMember() throws LDAPException {
+    List<String> uids = new ArrayList<>();
+    managerLDAP.forEachMember("group2", 2, null, entry -> uids.add(entry.getAttributeValue("uid")), "uid");
+    assertEquals(List.of("user1", "user2", "user3"), uids.stream().sorted().toList());
+
+    uids.clear();
+    managerLDAP.forEachMember("group2", 2, Filter.createEqualityFilter("uid", "user2"), entry -> uids.add(entry.getAttributeValue("uid")), "uid");
+    assertEquals(List.of("user2"), uids);
+
+    uids.clear();
+    managerLDAP.forEachMember("group1", 2, null, entry -> uids.add(entry.getAttributeValue("uid")), "uid");
+    assertEquals(List.of(), uids);
+  }
+
+  @Test
+  void test_forEachUserPaged() throws LDAPException {
+    List<String> uids = new ArrayList<>();
+    managerLDAP.forEachUser(1, entry -> uids.add(entry.getAttributeValue("uid")), "uid");
+    assertEquals(List.of("user1", "user2", "user3"), uids.stream().sorted().toList());
+
+    managerLDAP.addSshKey("user2", SshPublicKeyTest.ED25519);
+    List<String> withoutKeys = new ArrayList<>();
+    managerLDAP.forEachUser(2, Filter.createNOTFilter(Filter.createPresenceFilter("sshPublicKey")),
+      entry -> withoutKeys.add(entry.getAttributeValue("uid")), "uid");
+    assertEquals(List.of("user1", "user3"), withoutKeys.stream().sorted().toList());
+  }
+
+  @Test
+  void test_syncGroupMembers() throws IOException, LDAPException {
+    List<String> changes = new ArrayList<>();
+    var sync = new GroupMemberSync(managerLDAP, 1, false, GroupMemberSync.DEFAULT_MAX_REMOVE_PERCENT, new GroupMemberSync.Listener() {
+      @Override
+      public void added(String group, String memberDN) {
+        changes.add("+" + memberDN);
+      }
+
+      @Override
+      public void removed(String group, String memberDN) {
+        changes.add("-" + memberDN);
+      }
+
+      @Override
+      public void unknownUser(String group, String uid) {
+        changes.add("?" + uid);
+      }
+    });
+
+    var result = sync.sync("group2", new BufferedReader(new StringReader("user3\n# comment\nuser4\n\nuser1\nUSER1\n")));
+
+    assertEquals(new GroupMemberSync.Result(0, 1, 1), result);
+    assertEquals(List.of("?user4", "-uid=user2,ou=users,dc=noname-ev,dc=de"), changes);
+    var members = managerLDAP.getGroupEntry("group2").getAttributeValues("member");
+    assertEquals(2, members.length);
+
+    changes.clear();
+    result = sync.sync("group1", new BufferedReader(new StringReader("user1\nuser2\n")));
+    assertEquals(new GroupMemberSync.Result(2, 0, 0), result);
+    assertEquals(2, managerLDAP.getGroupEntry("group1").getAttributeValues("member").length);
+
+    // an empty list removes nobody unless forced
+    changes.clear();
+    assertThrows(RuntimeException.class, () -> sync.sync("group1", new BufferedReader(new StringReader("# nothing\n"))));
+    assertEquals(List.of(), changes);
+    assertEquals(2, managerLDAP.getGroupEntry("group1").getAttributeValues("member").length);
+
+    // a dry run lists the removals it refuses
+    List<String> refused = new ArrayList<>();
+    var dryRun = new GroupMemberSync(managerLDAP, 1, true, GroupMemberSync.DEFAULT_MAX_REMOVE_PERCENT, new GroupMemberSync.Listener() {
+      @Override
+      public void added(String group, String memberDN) {
+      }
+
+      @Override
+      public void removed(String group, String memberDN) {
+        refused.add(memberDN);
+      }
+
+      @Override
+      public void unknownUser(String group, String uid) {
+      }
+    });
+    assertThrows(RuntimeException.class, () -> dryRun.sync("group1", new BufferedReader(new StringReader(""))));
+    assertEquals(2, refused.size());
+    assertEquals(2, managerLDAP.getGroupEntry("group1").getAttributeValues("member").length);
+
+    var forced = new GroupMemberSync(managerLDAP, 1, false, 100, new GroupMemberSync.Listener() {
+      @Override
+      public void added(String group, String memberDN) {
+      }
+
+      @Override
+      public void removed(String group, String memberDN) {
+      }
+
+      @Override
+      public void unknownUser(String group, String uid) {
+      }
+    });
+    assertEquals(new GroupMemberSync.Result(0, 2, 0), forced.sync("group1", new BufferedReader(new StringReader(""))));
+    assertNull(managerLDAP.getGroupEntry("group1").getAttributeValues("member"));
+  }
+
+  @Test
+  void test_sshKeys() throws LDAPException {
+    String key = SshPublicKeyTest.ED25519;
+
+    assertEquals(1, managerLDAP.addSshKeys("user1", List.of(key + " laptop", "", key + " desktop")).size());
+    assertEquals(0, managerLDAP.addSshKeys("user1", List.of(key)).size());
+    assertEquals(List.of(key + " laptop"), List.of(managerLDAP.getUserEntry("user1").getAttributeValues("sshPublicKey")));
+
+    assertThrows(IllegalArgumentException.class, () -> managerLDAP.addSshKeys("user1", List.of("ssh-rsa AAAA", key)));
+
+    assertEquals(1, managerLDAP.removeSshKeys("user1", List.of(key + " other comment")).size());
+    assertFalse(managerLDAP.getUserEntry("user1").hasAttribute("sshPublicKey"));
+
+    assertEquals(1, managerLDAP.replaceSshKeys("user1", List.of(key, key + " again")).size());
+    assertEquals(List.of(key), List.of(managerLDAP.getUserEntry("user1").getAttributeValues("sshPublicKey")));
+    managerLDAP.replaceSshKeys("user1", List.of());
+    assertFalse(managerLDAP.getUserEntry("user1").hasAttribute("sshPublicKey"));
+  }
+
+  @Test
+  void test_removeDuplicateAndInvalidSshKeys() throws LDAPException {
+    String key = SshPublicKeyTest.ED25519;
+    String cert = "ssh-ed25519-cert-v01@openssh.com AAAAIHNzaC1lZDI1NTE5LWNlcnQtdjAxQG9wZW5zc2guY29t laptop";
+    inMemLdapManager.srv.modify("uid=user1," + ManagerLDAP.USERS_BASE,
+      new Modification(ModificationType.ADD, "sshPublicKey", key + " laptop", "no-pty " + key + " desktop", cert));
+
+    // both copies of the key go, whatever their comment and options
+    assertEquals(2, managerLDAP.removeSshKeys("user1", List.of(key)).size());
+    assertEquals(List.of(cert), List.of(managerLDAP.getUserEntry("user1").getAttributeValues("sshPublicKey")));
+
+    // values that are not valid keys can still be removed by their exact value
+    assertEquals(List.of(cert), managerLDAP.removeSshKeys("user1", List.of(cert)));
+    assertFalse(managerLDAP.getUserEntry("user1").hasAttribute("sshPublicKey"));
+  }
+
   @Test
   void test_checkIfUIDExits() throws LDAPException {
     assertTrue(managerLDAP.isUidUnique("user1"));
@@ -67,4 +411,37 @@ class ManagerLDAPTest {
     assertFalse(managerLDAP.isGidUnique("user1"));
     assertFalse(managerLDAP.isGidUnique("group4"));
   }
+
+  @Test
+  void test_gapIdAllocation() throws LDAPException {
+    inMemLdapManager.srv.delete("uid=user2," + ManagerLDAP.USERS_BASE);
+    managerLDAP.setIdAllocators(
+      new GapIdAllocator(managerLDAP, ManagerLDAP.UID_DN, "uidNumber", 1000, 1010),
+      new GapIdAllocator(managerLDAP, ManagerLDAP.GID_DN, "gidNumber", 1000, 1010));
+
+    // the number of the deleted user is reused, the counter above it is left alone
+    assertEquals(1001, managerLDAP.addUser("user4", "User Four", "group1", "/bin/bash", "/home/user4"));
+    assertEquals(2000, managerLDAP.getPosixIdCounter(ManagerLDAP.UID_DN, "uidNumber"));
+
+    // uid 1003 is free, but gid 1003 belongs to noname
+    assertEquals(1004, managerLDAP.addUserWithUserGroup("user5", "User Five", "/bin/bash"));
+    assertEquals(1004, managerLDAP.getGidNumber("user5"));
+
+    // numbers at the counter are claimed by moving it
+    var high = new GapIdAllocator(managerLDAP, ManagerLDAP.UID_DN, "uidNumber", 2000, 2001);
+    assertEquals(2000, high.next());
+    assertEquals(2001, high.next());
+    assertEquals(2002, managerLDAP.getPosixIdCounter(ManagerLDAP.UID_DN, "uidNumber"));
+    assertThrows(LDAPException.class, high::next);
+  }
+
+  @Test
+  void test_gapIdAllocationKeepsPrimaryGroupNumbers() throws LDAPException {
+    // user3 keeps the gidNumber 1002 of its deleted primary group
+    inMemLdapManager.srv.delete("cn=group3," + ManagerLDAP.GROUPS_BASE);
+    assertTrue(managerLDAP.isPosixIdNumberInUse("gidNumber", 1002, 1003));
+
+    var gids = new GapIdAllocator(managerLDAP, ManagerLDAP.GID_DN, "gidNumber", 1000, 1010);
+    assertEquals(1004, gids.next());
+  }
 }
@@ -0,0 +1,103 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the servers don't replicate, so a write is only visible to reads that were routed to the primary
+class ReplicaRouterTest {
+
+  TestInMemLdap primary;
+  TestInMemLdap replica;
+
+  @BeforeEach
+  void startInMemServers() throws LDAPException, LDIFException, IOException {
+    primary = new TestInMemLdap();
+    primary.startLdap();
+    replica = new TestInMemLdap();
+    replica.startLdap();
+  }
+
+  @AfterEach
+  void stopInMemServers() {
+    primary.shutdownLdap();
+    replica.shutdownLdap();
+  }
+
+  @Test
+  void test_readsGoToReplicas() throws LDAPException {
+    try (var router = new ReplicaRouter(primary.getConnection(), List.of(replica.getConnection()), Duration.ZERO)) {
+      var managerLDAP = new ManagerLDAP(router.ldap());
+      assertNotNull(managerLDAP.getUserEntry("user1"));
+      assertEquals(0, router.getPrimaryReads());
+
+      managerLDAP.addGroup("group4", ManagerLDAP.GroupType.RegularGroup);
+      assertTrue(router.getReplicaReads() > 1);
+      assertFalse(managerLDAP.isGidUnique("group4"));
+      assertTrue(new ManagerLDAP(primary.getConnection()).isGidUnique("group4"));
+    }
+  }
+
+  @Test
+  void test_readAfterWrite() throws LDAPException {
+    try (var router = new ReplicaRouter(primary.getConnection(), List.of(replica.getConnection()), Duration.ofMinutes(1))) {
+      var managerLDAP = new ManagerLDAP(router.ldap());
+      managerLDAP.addGroup("group4", ManagerLDAP.GroupType.RegularGroup);
+      long primaryReads = router.getPrimaryReads();
+
+      assertTrue(managerLDAP.isGidUnique("group4"));
+      assertEquals(primaryReads + 1, router.getPrimaryReads());
+    }
+  }
+
+  @Test
+  void test_pagedSearchStaysOnOneReplica() throws LDAPException {
+    try (var router = new ReplicaRouter(primary.getConnection(), List.of(replica.srv.getConnectionPool(2)), Duration.ofMinutes(1))) {
+      var managerLDAP = new ManagerLDAP(router.ldap());
+      List<String> uids = new ArrayList<>();
+      // a page per user, a write in between must not move the following pages to the primary
+      managerLDAP.forEachUser(1, entry -> {
+        uids.add(entry.getAttributeValue("uid"));
+        if (uids.size() == 1) {
+          assertDoesNotThrow(() -> router.ldap().add(ManagerLDAP.createGroupEntry("group4", ManagerLDAP.GroupType.RegularGroup, 4000)));
+        }
+      }, "uid");
+      assertEquals(List.of("user1", "user2", "user3"), uids.stream().sorted().toList());
+      assertEquals(1, router.getReplicaReads());
+      assertEquals(0, router.getPrimaryReads());
+    }
+  }
+
+  @Test
+  void test_failover() throws LDAPException, LDIFException, IOException {
+    try (var router = new ReplicaRouter(primary.getConnection(), List.of(replica.srv.getConnectionPool(1)), Duration.ZERO)) {
+      var managerLDAP = new ManagerLDAP(router.ldap());
+      replica.shutdownLdap();
+
+      assertNotNull(managerLDAP.getUserEntry("user1"));
+      assertEquals(1, router.getFailovers());
+      assertEquals(0, router.getHealthyReplicas());
+
+      // no further attempts until a health check finds the replica working again
+      assertNotNull(managerLDAP.getUserEntry("user2"));
+      assertEquals(1, router.getFailovers());
+      router.checkHealth();
+      assertEquals(0, router.getHealthyReplicas());
+
+      replica.restartLdap();
+      router.checkHealth();
+      assertEquals(1, router.getHealthyReplicas());
+      long replicaReads = router.getReplicaReads();
+      assertNotNull(managerLDAP.getUserEntry("user3"));
+      assertEquals(replicaReads + 1, router.getReplicaReads());
+      assertEquals(1, router.getFailovers());
+    }
+  }
+}
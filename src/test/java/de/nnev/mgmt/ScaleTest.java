@@ -0,0 +1,249 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// runs every command against generated directories of growing size (-Dscale.sizes, number of users) and fails if
+// the latency, the allocations or the retained heap of a command grow faster than expected. -Dscale.record=<file>
+// writes the measurements, -Dscale.baseline=<file> fails on regressions against such a recording of an earlier run.
+// Run with ./gradlew scaleTest
+@Tag("scale")
+class ScaleTest {
+
+  enum Growth {
+    // lookups and changes of single entries, allowed to grow slightly for deeper indexes and larger maps
+    point(0.25),
+    // commands that have to look at every user or group
+    linear(1.0);
+
+    final double exponent;
+
+    Growth(double exponent) {
+      this.exponent = exponent;
+    }
+  }
+
+  // measurement noise, JIT and GC make the medians of runs differ by this much; allocations hardly vary
+  private static final double LATENCY_SLACK = 2;
+  private static final double MEMORY_SLACK = 1.25;
+  // below these the measurements are mostly noise
+  private static final long MIN_NANOS = 500_000;
+  private static final long MIN_BYTES = 256 * 1024;
+  private static final long MIN_RETAINED_BYTES = 1024 * 1024;
+
+  private static final int WARMUP_RUNS = 3;
+  private static final int RUNS = 7;
+
+  interface Arguments {
+    List<String> of(int run) throws IOException;
+  }
+
+  record Scenario(String command, Growth growth, Arguments arguments) {
+  }
+
+  record Measurement(long nanos, long bytes, long retainedBytes) {
+  }
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void test_commandsScale(TestReporter reporter) throws LDAPException, LDIFException, IOException {
+    int[] sizes = Arrays.stream(System.getProperty("scale.sizes", "1000,10000,100000").split(",")).mapToInt(Integer::parseInt).sorted().toArray();
+    assertTrue(sizes.length > 1, "need at least two sizes to compare");
+
+    Map<String, Measurement[]> results = new LinkedHashMap<>();
+    Map<String, Growth> growth = new LinkedHashMap<>();
+    for (int s = 0; s < sizes.length; s++) {
+      var generator = new DirectoryGenerator(sizes[s], Math.max(10, sizes[s] / 100), 5000, DirectoryGenerator.Distribution.zipf).withSshKeys();
+      var ldap = new TestInMemLdap();
+      ldap.startLdap();
+      try {
+        generator.populate(ldap);
+        var u = new ManagerLDAP(ldap.getConnection());
+        for (Scenario scenario : scenarios(generator, tempDir.resolve(String.valueOf(sizes[s])))) {
+          growth.put(scenario.command(), scenario.growth());
+          results.computeIfAbsent(scenario.command(), k -> new Measurement[sizes.length])[s] = measure(u, scenario);
+        }
+      } finally {
+        ldap.shutdownLdap();
+      }
+    }
+
+    // every command has to be covered, new ones need a scenario
+    for (String name : new Manager().commandLine().getSubcommands().keySet()) {
+      assertTrue(name.equals("serve") || results.containsKey(name), "no scenario for command " + name);
+    }
+
+    Properties baseline = load(System.getProperty("scale.baseline"));
+    Properties recording = new Properties();
+    List<Executable> checks = new ArrayList<>();
+    for (var result : results.entrySet()) {
+      String command = result.getKey();
+      Measurement[] measurements = result.getValue();
+      double exponent = growth.get(command).exponent;
+      for (int s = 0; s < sizes.length; s++) {
+        Measurement m = measurements[s];
+        String key = command + "." + sizes[s];
+        reporter.publishEntry(key, String.format("%.3f ms, %d KiB allocated, %d KiB retained", m.nanos() / 1e6, m.bytes() / 1024, m.retainedBytes() / 1024));
+        recording.setProperty(key + ".nanos", String.valueOf(m.nanos()));
+        recording.setProperty(key + ".bytes", String.valueOf(m.bytes()));
+        recording.setProperty(key + ".retainedBytes", String.valueOf(m.retainedBytes()));
+
+        String at = command + " at " + sizes[s] + " users: ";
+        if (s > 0) {
+          double ratio = Math.pow((double) sizes[s] / sizes[0], exponent);
+          checks.add(withinGrowth(at + "latency", measurements[0].nanos(), m.nanos(), MIN_NANOS, LATENCY_SLACK * ratio));
+          checks.add(withinGrowth(at + "allocations", measurements[0].bytes(), m.bytes(), MIN_BYTES, MEMORY_SLACK * ratio));
+          checks.add(withinGrowth(at + "retained heap", measurements[0].retainedBytes(), m.retainedBytes(), MIN_RETAINED_BYTES, MEMORY_SLACK * ratio));
+        }
+        if (baseline.containsKey(key + ".nanos")) {
+          checks.add(withinGrowth(at + "latency since the baseline", Long.parseLong(baseline.getProperty(key + ".nanos")), m.nanos(), MIN_NANOS, LATENCY_SLACK));
+          checks.add(withinGrowth(at + "allocations since the baseline", Long.parseLong(baseline.getProperty(key + ".bytes")), m.bytes(), MIN_BYTES, MEMORY_SLACK));
+          checks.add(withinGrowth(at + "retained heap since the baseline", Long.parseLong(baseline.getProperty(key + ".retainedBytes")), m.retainedBytes(), MIN_RETAINED_BYTES, MEMORY_SLACK));
+        }
+      }
+    }
+
+    String record = System.getProperty("scale.record");
+    if (record != null) {
+      try (OutputStream out = Files.newOutputStream(Path.of(record))) {
+        recording.store(out, "ScaleTest " + Arrays.toString(sizes));
+      }
+    }
+    assertAll(checks);
+  }
+
+  // values below min are raised to it, so that growth from next to nothing does not count
+  private static Executable withinGrowth(String what, long base, long value, long min, double allowed) {
+    double grown = (double) Math.max(min, value) / Math.max(min, base);
+    return () -> assertTrue(grown <= allowed, what + " grew " + String.format("%.2f", grown) + "x (" + base + " -> " + value + "), allowed " + String.format("%.2f", allowed) + "x");
+  }
+
+  private static Properties load(String file) throws IOException {
+    Properties properties = new Properties();
+    if (file != null) {
+      try (InputStream in = Files.newInputStream(Path.of(file))) {
+        properties.load(in);
+      }
+    }
+    return properties;
+  }
+
+  // median latency, allocations of the calling thread and heap still in use after a collection (including what the
+  // command added to the in-memory directory) over RUNS runs after WARMUP_RUNS runs
+  private static Measurement measure(ManagerLDAP u, Scenario scenario) throws IOException {
+    var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    var memory = ManagementFactory.getMemoryMXBean();
+    long[] nanos = new long[RUNS];
+    long[] bytes = new long[RUNS];
+    long[] retained = new long[RUNS];
+    for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+      List<String> args = new ArrayList<>();
+      args.add(scenario.command());
+      args.addAll(scenario.arguments().of(run));
+
+      var commandLine = new Manager(u).commandLine();
+      commandLine.setOut(new PrintWriter(Writer.nullWriter()));
+      commandLine.setErr(new PrintWriter(Writer.nullWriter()));
+
+      long usedBefore = run >= WARMUP_RUNS ? usedHeapAfterGC(memory) : 0;
+      long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+      long start = System.nanoTime();
+      int exitCode = commandLine.execute(args.toArray(new String[0]));
+      long elapsed = System.nanoTime() - start;
+      long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+      assertEquals(0, exitCode, String.join(" ", args));
+      if (run >= WARMUP_RUNS) {
+        nanos[run - WARMUP_RUNS] = elapsed;
+        bytes[run - WARMUP_RUNS] = allocated;
+        retained[run - WARMUP_RUNS] = Math.max(0, usedHeapAfterGC(memory) - usedBefore);
+      }
+    }
+    Arrays.sort(nanos);
+    Arrays.sort(bytes);
+    Arrays.sort(retained);
+    return new Measurement(nanos[RUNS / 2], bytes[RUNS / 2], retained[RUNS / 2]);
+  }
+
+  // System.gc() is only a request, so collect until the heap in use stops shrinking
+  private static long usedHeapAfterGC(MemoryMXBean memory) {
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      long now = memory.getHeapMemoryUsage().getUsed();
+      if (now >= used) {
+        break;
+      }
+      used = now;
+    }
+    return used;
+  }
+
+  // run numbers pick different users and names, so that every run does the same amount of work
+  private static List<Scenario> scenarios(DirectoryGenerator generator, Path dir) throws IOException {
+    Files.createDirectories(dir);
+    int users = generator.getUsers();
+    String smallGroup = DirectoryGenerator.group(generator.getGroups() - 1);
+    Path members = Files.write(dir.resolve("members"), generator.memberUids(generator.getGroups() - 1));
+    Path index = dir.resolve("keys.idx");
+
+    List<Scenario> scenarios = new ArrayList<>();
+    // the in-memory server has no ordering index, so the check for free id numbers scans all accounts
+    scenarios.add(new Scenario("add-noname-user", Growth.linear, run -> List.of("newuser" + run, "New User")));
+    scenarios.add(new Scenario("add-group", Growth.linear, run -> List.of("newgroup" + run)));
+    scenarios.add(new Scenario("import-users", Growth.linear, run -> {
+      List<String> rows = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        rows.add("imported" + run + "x" + i + ",Imported User");
+      }
+      return List.of(Files.write(dir.resolve("import" + run + ".csv"), rows).toString());
+    }));
+    scenarios.add(new Scenario("list-users", Growth.linear, run -> List.of("--page-size", "1000")));
+    scenarios.add(new Scenario("list-groups", Growth.linear, run -> List.of("--page-size", "1000")));
+    scenarios.add(new Scenario("add-user-to-group", Growth.point, run -> List.of(DirectoryGenerator.uid(users - 1 - run), smallGroup)));
+    scenarios.add(new Scenario("remove-user-from-group", Growth.point, run -> List.of(DirectoryGenerator.uid(users - 1 - run), smallGroup)));
+    scenarios.add(new Scenario("sync-group-members", Growth.point, run -> List.of(smallGroup + "=" + members)));
+    // odd users have no key
+    scenarios.add(new Scenario("add-ssh-key", Growth.point, run -> List.of(DirectoryGenerator.uid(2 * run + 1), key(dir, run))));
+    scenarios.add(new Scenario("remove-ssh-key", Growth.point, run -> List.of(DirectoryGenerator.uid(2 * run + 1), key(dir, run))));
+    scenarios.add(new Scenario("set-ssh-keys", Growth.point, run -> List.of(DirectoryGenerator.uid(2 * run), key(dir, run))));
+    scenarios.add(new Scenario("get-ssh-keys", Growth.point, run -> List.of(DirectoryGenerator.uid(2 * run))));
+    scenarios.add(new Scenario("export-ssh-keys", Growth.linear, run -> List.of("--full", "--index", index.toString())));
+    scenarios.add(new Scenario("audit", Growth.linear, run -> List.of()));
+    scenarios.add(new Scenario("authorized-keys", Growth.point, run -> List.of("--index", index.toString(), DirectoryGenerator.uid(2 * run))));
+    return scenarios;
+  }
+
+  private static String key(Path dir, int run) throws IOException {
+    Path key = dir.resolve("key" + run + ".pub");
+    if (!Files.exists(key)) {
+      Files.writeString(key, DirectoryGenerator.sshKey(-1 - run) + "\n");
+    }
+    return key.toString();
+  }
+}
@@ -0,0 +1,64 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SshKeyIndexTest {
+
+  TestInMemLdap inMemLdapManager;
+  ManagerLDAP managerLDAP;
+
+  @TempDir
+  Path tempDir;
+
+  @BeforeEach
+  void startInMemServer() throws LDAPException, LDIFException, IOException {
+    inMemLdapManager = new TestInMemLdap();
+    inMemLdapManager.startLdap();
+    managerLDAP = new ManagerLDAP(inMemLdapManager.getConnection());
+  }
+
+  @AfterEach
+  void stopInMemServer() {
+    inMemLdapManager.shutdownLdap();
+  }
+
+  @Test
+  void test_refresh() throws IOException, LDAPException {
+    Path path = tempDir.resolve("keys.idx");
+    String key = SshPublicKeyTest.ED25519;
+    managerLDAP.addSshKey("user1", key);
+
+    var result = SshKeyIndex.refresh(managerLDAP, path, false);
+    assertTrue(result.full());
+    // readable by the unprivileged AuthorizedKeysCommandUser
+    assertEquals(PosixFilePermissions.fromString("rw-r--r--"), Files.getPosixFilePermissions(path));
+    try (var index = SshKeyIndex.open(path)) {
+      assertEquals(result.users(), index.size());
+      assertEquals(List.of(key), index.lookup("user1"));
+      assertEquals(List.of(), index.lookup("user2"));
+      assertNull(index.lookup("nobody"));
+    }
+
+    managerLDAP.addUser("user4", "User Four", "group1", "/bin/bash", "/home/user4");
+    managerLDAP.removeSshKey("user1", key);
+    managerLDAP.addSshKey("user2", key);
+
+    assertFalse(SshKeyIndex.refresh(managerLDAP, path, false).full());
+    try (var index = SshKeyIndex.open(path)) {
+      assertEquals(List.of(), index.lookup("user1"));
+      assertEquals(List.of(key), index.lookup("user2"));
+      assertEquals(List.of(), index.lookup("user4"));
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package de.nnev.mgmt;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SshPublicKeyTest {
+
+  static final String ED25519 = "ssh-ed25519 AAAAC3NzaC1lZDI1NTE5AAAAIOMqqnkVzrm0SdG6UOoqKLsabgH5C9okWi0dh2l9GKJl";
+
+  @Test
+  void test_parse() {
+    var key = SshPublicKey.parse("  " + ED25519 + "   user@host  ");
+    assertEquals("ssh-ed25519", key.getType());
+    assertEquals("user@host", key.getComment());
+    assertEquals(ED25519 + " user@host", key.toString());
+    assertTrue(key.getFingerprint().startsWith("SHA256:"));
+  }
+
+  @Test
+  void test_sameKeyWithDifferentCommentIsEqual() {
+    var a = SshPublicKey.parse(ED25519 + " laptop");
+    var b = SshPublicKey.parse("no-agent-forwarding " + ED25519);
+    assertEquals(a, b);
+    assertEquals(a.getFingerprint(), b.getFingerprint());
+  }
+
+  @Test
+  void test_quotedOptions() {
+    var key = SshPublicKey.parse("command=\"echo a  b\",from=\"10.0.0.1, 10.0.0.2\" " + ED25519 + " user@host");
+    assertEquals("ssh-ed25519", key.getType());
+    assertEquals("user@host", key.getComment());
+    assertEquals("command=\"echo a  b\",from=\"10.0.0.1, 10.0.0.2\" " + ED25519 + " user@host", key.toString());
+    assertEquals(SshPublicKey.parse(ED25519), key);
+
+    // an escaped quote does not end the value
+    assertEquals("user@host", SshPublicKey.parse("command=\"echo \\\" ssh-rsa x\" " + ED25519 + " user@host").getComment());
+    assertThrows(IllegalArgumentException.class, () -> SshPublicKey.parse("command=\"unterminated " + ED25519));
+  }
+
+  @Test
+  void test_invalidKeys() {
+    assertThrows(IllegalArgumentException.class, () -> SshPublicKey.parse("ssh-ed25519"));
+    assertThrows(IllegalArgumentException.class, () -> SshPublicKey.parse("ssh-foo AAAA"));
+    assertThrows(IllegalArgumentException.class, () -> SshPublicKey.parse("ssh-ed25519 not*base64"));
+    assertThrows(IllegalArgumentException.class, () -> SshPublicKey.parse(ED25519.replace("ssh-ed25519", "ssh-rsa")));
+  }
+}
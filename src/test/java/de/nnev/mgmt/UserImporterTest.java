@@ -0,0 +1,151 @@
+package de.nnev.mgmt;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserImporterTest {
+
+  TestInMemLdap inMemLdapManager;
+  ManagerLDAP managerLDAP;
+
+  @TempDir
+  Path tempDir;
+
+  @BeforeEach
+  void startInMemServer() throws LDAPException, LDIFException, IOException {
+    inMemLdapManager = new TestInMemLdap();
+    inMemLdapManager.startLdap();
+    managerLDAP = new ManagerLDAP(inMemLdapManager.getConnection());
+  }
+
+  @AfterEach
+  void stopInMemServer() {
+    inMemLdapManager.shutdownLdap();
+  }
+
+  @Test
+  void test_importCsv() throws IOException, LDAPException {
+    Path csv = tempDir.resolve("users.csv");
+    Files.writeString(csv, """
+      # username,realname,shell
+      alice,Alice
+      bob,"Builder, Bob",/bin/zsh
+      alice,Alice Again
+      user1,Already There
+      Invalid,Invalid Name
+      carol,Carol
+      """);
+
+    List<String> failures = new ArrayList<>();
+    var importer = new UserImporter(managerLDAP, List.of("noname"), "/usr/bin/bash", 3, (row, reason) -> failures.add(row.position() + ":" + reason));
+    importer.importFile(csv, UserImporter.detectFormat(csv));
+
+    assertEquals(3, importer.getImported());
+    assertEquals(3, importer.getFailed());
+    assertEquals(List.of("4:Duplicate user name in input", "6:Invalid user name", "5:Already in use as user name"), failures);
+
+    var bob = managerLDAP.getUserEntry("bob");
+    assertEquals("Builder, Bob", bob.getAttributeValue("cn"));
+    assertEquals("/bin/zsh", bob.getAttributeValue("loginShell"));
+    assertEquals(bob.getAttributeValueAsInteger("gidNumber"), managerLDAP.getGidNumber("bob"));
+
+    var noname = managerLDAP.getGroupEntry("noname");
+    for (String uid : List.of("alice", "bob", "carol")) {
+      assertTrue(noname.hasAttributeValue("member", ManagerLDAP.getUserDN(uid).toString()));
+    }
+  }
+
+  @Test
+  void test_failedRowsReturnTheirNumbers() throws IOException, LDAPException {
+    // a leftover entry that is no posixAccount: the name counts as free, but the user entry can't be added
+    inMemLdapManager.srv.add("uid=stale," + ManagerLDAP.USERS_BASE, new Attribute("objectClass", "top", "account"), new Attribute("uid", "stale"));
+
+    List<String> failures = new ArrayList<>();
+    var importer = new UserImporter(managerLDAP, List.of("noname"), "/usr/bin/bash", 2, (row, reason) -> failures.add(row.uid()));
+    importer.importRows(rows(new UserImporter.Row(1, "stale", "Stale", null), new UserImporter.Row(2, "alice", "Alice", null), new UserImporter.Row(3, "bob", "Bob", null)));
+
+    assertEquals(2, importer.getImported());
+    assertEquals(1, importer.getFailed());
+    assertEquals(List.of("stale"), failures);
+    assertFalse(managerLDAP.isGidUnique("stale"));
+    // the numbers of the failed row went to the next batch
+    assertEquals(2000, managerLDAP.getUserEntry("bob").getAttributeValueAsInteger("uidNumber"));
+    assertEquals(2000, managerLDAP.getGidNumber("bob"));
+    assertEquals(2002, managerLDAP.getPosixIdCounter(ManagerLDAP.UID_DN, "uidNumber"));
+    assertEquals(2002, managerLDAP.getPosixIdCounter(ManagerLDAP.GID_DN, "gidNumber"));
+  }
+
+  @Test
+  void test_failedLastRowReturnsItsNumbersToTheCounter() throws IOException, LDAPException {
+    inMemLdapManager.srv.add("uid=stale," + ManagerLDAP.USERS_BASE, new Attribute("objectClass", "top", "account"), new Attribute("uid", "stale"));
+
+    var importer = new UserImporter(managerLDAP, List.of("noname"), "/usr/bin/bash", 10, (row, reason) -> {
+    });
+    importer.importRows(rows(new UserImporter.Row(1, "alice", "Alice", null), new UserImporter.Row(2, "stale", "Stale", null)));
+
+    assertEquals(1, importer.getImported());
+    assertEquals(2001, managerLDAP.getPosixIdCounter(ManagerLDAP.UID_DN, "uidNumber"));
+    assertEquals(2001, managerLDAP.getPosixIdCounter(ManagerLDAP.GID_DN, "gidNumber"));
+  }
+
+  @Test
+  void test_membershipFailuresCountSeparately() throws IOException, LDAPException {
+    List<String> failures = new ArrayList<>();
+    var importer = new UserImporter(managerLDAP, List.of("group1"), "/usr/bin/bash", 10, (row, reason) -> failures.add(row.uid() + ":" + reason));
+    var rows = rows(new UserImporter.Row(1, "alice", "Alice", null), new UserImporter.Row(2, "bob", "Bob", null));
+    // the group disappears after it was looked up, before the batch is written
+    importer.importRows(new UserImporter.RowSource() {
+      @Override
+      public UserImporter.Row next() throws IOException {
+        UserImporter.Row row = rows.next();
+        if (row == null) {
+          try {
+            inMemLdapManager.srv.delete(ManagerLDAP.getGroupDN("group1", ManagerLDAP.GroupType.RegularGroup).toString());
+          } catch (LDAPException e) {
+            throw new IOException(e);
+          }
+        }
+        return row;
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+
+    assertEquals(2, importer.getImported());
+    assertEquals(0, importer.getFailed());
+    assertEquals(2, importer.getIncompleteMemberships());
+    assertEquals(2, failures.size());
+    assertTrue(failures.get(0).startsWith("alice:Created, but unable to add to group group1"), failures.get(0));
+    assertEquals(2001, managerLDAP.getUserEntry("bob").getAttributeValueAsInteger("uidNumber"));
+  }
+
+  private static UserImporter.RowSource rows(UserImporter.Row... rows) {
+    Iterator<UserImporter.Row> it = List.of(rows).iterator();
+    return new UserImporter.RowSource() {
+      @Override
+      public UserImporter.Row next() {
+        return it.hasNext() ? it.next() : null;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+}